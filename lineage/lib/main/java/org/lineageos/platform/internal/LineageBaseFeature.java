@@ -31,6 +31,10 @@ public abstract class LineageBaseFeature {
 
     protected abstract void onSettingsChanged(Uri uri);
 
+    protected void dispatchSettingsChanged(Uri uri) {
+        onSettingsChanged(uri);
+    }
+
     public abstract void dump(PrintWriter pw);
 
     public void start() {
@@ -40,11 +44,17 @@ public abstract class LineageBaseFeature {
         }
     }
 
-    protected final void registerSettings(Uri... settings) {
+    protected void registerSettings(Uri... settings) {
         mSettingsObserver.register(settings);
     }
 
+    /**
+     * Called for every setting read through the getters below.
+     */
+    protected void onSettingRead() { }
+
     protected final boolean getBoolean(String setting, boolean defaultValue) {
+        onSettingRead();
         return LineageSettings.System.getIntForUser(mContext.getContentResolver(),
                 setting, (defaultValue ? 1 : 0), UserHandle.USER_CURRENT) == 1;
     }
@@ -55,6 +65,7 @@ public abstract class LineageBaseFeature {
     }
 
     protected final int getInt(String setting, int defaultValue) {
+        onSettingRead();
         return LineageSettings.System.getIntForUser(mContext.getContentResolver(),
                 setting, defaultValue, UserHandle.USER_CURRENT);
     }
@@ -65,6 +76,7 @@ public abstract class LineageBaseFeature {
     }
 
     protected final String getString(String setting) {
+        onSettingRead();
         return LineageSettings.System.getStringForUser(mContext.getContentResolver(),
                 setting, UserHandle.USER_CURRENT);
     }
@@ -100,12 +112,12 @@ public abstract class LineageBaseFeature {
 
         @Override
         protected void update() {
-            onSettingsChanged(null);
+            dispatchSettingsChanged(null);
         }
 
         @Override
         public void onChange(boolean selfChange, Uri uri) {
-            onSettingsChanged(uri);
+            dispatchSettingsChanged(uri);
         }
     }
 }
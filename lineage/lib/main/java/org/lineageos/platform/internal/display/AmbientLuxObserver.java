@@ -47,13 +47,17 @@ public class AmbientLuxObserver {
 
     private final TimedMovingAverageRingBuffer mRingBuffer;
 
+    private final LiveDisplayMetrics mMetrics;
+
     public interface TransitionListener {
         public void onTransition(int state, float ambientLux);
     }
 
     public AmbientLuxObserver(Context context, Looper looper,
-            float thresholdLux, float hysteresisLux, int thresholdDuration) {
+            float thresholdLux, float hysteresisLux, int thresholdDuration,
+            LiveDisplayMetrics metrics) {
         mLuxHandler = new AmbientLuxHandler(looper);
+        mMetrics = metrics;
         mThresholdLux = thresholdLux;
         mHysteresisLux = hysteresisLux;
         mThresholdDuration = thresholdDuration;
@@ -124,6 +128,7 @@ public class AmbientLuxObserver {
     private final SensorEventListener mListener = new SensorEventListener() {
         @Override
         public void onSensorChanged(SensorEvent event) {
+            mMetrics.count("sensor.light");
             if (mLightSensorEnabled) {
                 Message.obtain(mLuxHandler, AmbientLuxHandler.MSG_UPDATE_LUX,
                                event.values[0]).sendToTarget();
@@ -0,0 +1,141 @@
+/*
+ * SPDX-FileCopyrightText: 2024 The LineageOS Project
+ * SPDX-License-Identifier: Apache-2.0
+ */
+package org.lineageos.platform.internal.display;
+
+import android.content.ContentResolver;
+import android.content.Context;
+import android.net.Uri;
+import android.os.Handler;
+import android.os.UserHandle;
+import android.util.ArrayMap;
+import android.util.ArraySet;
+
+import org.lineageos.platform.internal.common.UserContentObserver;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A single settings observer shared by all LiveDisplay features.
+ *
+ * Changes arriving within BATCH_DELAY_MS of each other are gathered, and
+ * each feature then receives one onSettingsChanged call with all of its
+ * changed URIs, so restoring settings or switching modes results in one
+ * hardware update per feature instead of one per setting.
+ */
+public class BatchedSettingsObserver extends UserContentObserver {
+
+    // roughly one frame
+    private static final long BATCH_DELAY_MS = 16;
+
+    private final Context mContext;
+    private final Handler mHandler;
+
+    // features register from the thread starting them, dispatch runs on mHandler
+    private final Object mLock = new Object();
+    private final ArrayMap<Uri, List<LiveDisplayFeature>> mFeaturesByUri = new ArrayMap<>();
+    private final ArrayList<LiveDisplayFeature> mFeatures = new ArrayList<>();
+
+    // changes waiting to be dispatched, all accessed on mHandler
+    private final ArraySet<Uri> mPendingUris = new ArraySet<>();
+    private boolean mPendingAll;
+
+    private final Runnable mDispatchRunnable = this::dispatch;
+
+    public BatchedSettingsObserver(Context context, Handler handler) {
+        super(handler);
+        mContext = context;
+        mHandler = handler;
+    }
+
+    /**
+     * Start observing the given settings on behalf of a feature.
+     */
+    public void register(LiveDisplayFeature feature, Uri... uris) {
+        final ContentResolver cr = mContext.getContentResolver();
+        final boolean first;
+        synchronized (mLock) {
+            for (Uri uri : uris) {
+                List<LiveDisplayFeature> features = mFeaturesByUri.get(uri);
+                if (features == null) {
+                    features = new ArrayList<>();
+                    mFeaturesByUri.put(uri, features);
+                    cr.registerContentObserver(uri, false, this, UserHandle.USER_ALL);
+                }
+                if (!features.contains(feature)) {
+                    features.add(feature);
+                }
+            }
+            first = mFeatures.isEmpty();
+            if (!mFeatures.contains(feature)) {
+                mFeatures.add(feature);
+            }
+        }
+
+        if (first) {
+            observe();
+        }
+    }
+
+    @Override
+    protected void update() {
+        // user switch, everything may have changed
+        mPendingAll = true;
+        schedule();
+    }
+
+    @Override
+    public void onChange(boolean selfChange, Uri uri) {
+        if (uri == null) {
+            mPendingAll = true;
+        } else {
+            mPendingUris.add(uri);
+        }
+        schedule();
+    }
+
+    private void schedule() {
+        if (!mHandler.hasCallbacks(mDispatchRunnable)) {
+            mHandler.postDelayed(mDispatchRunnable, BATCH_DELAY_MS);
+        }
+    }
+
+    private void dispatch() {
+        // collect under the lock, but call the features without holding it
+        final ArrayList<LiveDisplayFeature> targets = new ArrayList<>();
+        final ArrayList<ArraySet<Uri>> changes = new ArrayList<>();
+        synchronized (mLock) {
+            for (int i = 0; i < mFeatures.size(); i++) {
+                final LiveDisplayFeature feature = mFeatures.get(i);
+                if (mPendingAll) {
+                    targets.add(feature);
+                    changes.add(null);
+                    continue;
+                }
+                ArraySet<Uri> changed = null;
+                for (int j = 0; j < mPendingUris.size(); j++) {
+                    final Uri uri = mPendingUris.valueAt(j);
+                    final List<LiveDisplayFeature> features = mFeaturesByUri.get(uri);
+                    if (features != null && features.contains(feature)) {
+                        if (changed == null) {
+                            changed = new ArraySet<>();
+                        }
+                        changed.add(uri);
+                    }
+                }
+                if (changed != null) {
+                    targets.add(feature);
+                    changes.add(changed);
+                }
+            }
+        }
+        mPendingAll = false;
+        mPendingUris.clear();
+
+        for (int i = 0; i < targets.size(); i++) {
+            targets.get(i).dispatchSettingsBatch(changes.get(i));
+        }
+    }
+}
@@ -28,7 +28,9 @@ import lineageos.util.ColorUtils;
 import org.lineageos.platform.internal.display.TwilightTracker.TwilightState;
 
 import java.io.PrintWriter;
+import java.util.Arrays;
 import java.util.BitSet;
+import java.util.Set;
 
 public class ColorTemperatureController extends LiveDisplayFeature {
 
@@ -51,19 +53,32 @@ public class ColorTemperatureController extends LiveDisplayFeature {
     private ValueAnimator mAnimator;
 
     private final LineageHardwareManager mHardware;
+    private final HardwareStateCache mHardwareState;
+
+    // precomputed twilight curve, see computeTwilightCurve()
+    private TwilightState mCurveTwilight;
+    private int mCurveDayTemperature;
+    private int mCurveNightTemperature;
+    private long[] mCurveTimes = new long[0];
+    private int[] mCurveTemperatures = new int[0];
 
     private static final long TWILIGHT_ADJUSTMENT_TIME = DateUtils.HOUR_IN_MILLIS / 2;
 
+    // Granularity of the twilight transition, in Kelvin
+    private static final int TWILIGHT_TEMPERATURE_STEP = 50;
+
     private static final Uri DISPLAY_TEMPERATURE_DAY =
             LineageSettings.System.getUriFor(LineageSettings.System.DISPLAY_TEMPERATURE_DAY);
     private static final Uri DISPLAY_TEMPERATURE_NIGHT =
             LineageSettings.System.getUriFor(LineageSettings.System.DISPLAY_TEMPERATURE_NIGHT);
 
     public ColorTemperatureController(Context context,
-            Handler handler, DisplayHardwareController displayHardware) {
-        super(context, handler);
+            Handler handler, DisplayHardwareController displayHardware,
+            HardwareStateCache hardwareState, LiveDisplayMetrics metrics) {
+        super(context, handler, metrics);
         mDisplayHardware = displayHardware;
         mHardware = LineageHardwareManager.getInstance(mContext);
+        mHardwareState = hardwareState;
 
         mUseColorBalance = mHardware
                 .isSupported(LineageHardwareManager.FEATURE_COLOR_BALANCE);
@@ -123,6 +138,9 @@ public class ColorTemperatureController extends LiveDisplayFeature {
 
     @Override
     protected void onScreenStateChanged() {
+        if (!isScreenOn()) {
+            mHandler.removeCallbacks(mTransitionRunnable);
+        }
         if (mAnimator != null && mAnimator.isRunning() && !isScreenOn()) {
             mAnimator.cancel();
         } else {
@@ -136,11 +154,11 @@ public class ColorTemperatureController extends LiveDisplayFeature {
     }
 
     @Override
-    protected synchronized void onSettingsChanged(Uri uri) {
-        if (uri == null || uri.equals(DISPLAY_TEMPERATURE_DAY)) {
+    protected synchronized void onSettingsChanged(Set<Uri> uris) {
+        if (uris == null || uris.contains(DISPLAY_TEMPERATURE_DAY)) {
             mDayTemperature = getDayColorTemperature();
         }
-        if (uri == null || uri.equals(DISPLAY_TEMPERATURE_NIGHT)) {
+        if (uris == null || uris.contains(DISPLAY_TEMPERATURE_NIGHT)) {
             mNightTemperature = getNightColorTemperature();
         }
         updateColorTemperature();
@@ -156,6 +174,8 @@ public class ColorTemperatureController extends LiveDisplayFeature {
         pw.println("  ColorTemperatureController State:");
         pw.println("    mColorTemperature=" + mColorTemperature);
         pw.println("    isTransitioning=" + isTransitioning());
+        pw.println("    mCurveTimes=" + Arrays.toString(mCurveTimes));
+        pw.println("    mCurveTemperatures=" + Arrays.toString(mCurveTemperatures));
     }
 
     private final Runnable mTransitionRunnable = this::updateColorTemperature;
@@ -167,40 +187,165 @@ public class ColorTemperatureController extends LiveDisplayFeature {
     }
 
     private synchronized void updateColorTemperature() {
+        mHandler.removeCallbacks(mTransitionRunnable);
+
         if (!mUseTemperatureAdjustment || !isScreenOn()) {
             return;
         }
         int temperature = mDayTemperature;
         int mode = getMode();
+        long nextChange = -1;
 
         if (mode == MODE_OFF) {
             temperature = mDefaultDayTemperature;
         } else if (mode == MODE_NIGHT) {
             temperature = mNightTemperature;
         } else if (mode == MODE_AUTO) {
-            temperature = getTwilightK();
+            final long now = System.currentTimeMillis();
+            computeTwilightCurve();
+
+            // find the last step at or before now on the precomputed curve
+            int idx = Arrays.binarySearch(mCurveTimes, now);
+            if (idx < 0) {
+                idx = -idx - 2;
+            }
+            if (idx >= 0 && idx < mCurveTimes.length - 1) {
+                temperature = mCurveTemperatures[idx];
+                nextChange = mCurveTimes[idx + 1];
+            } else {
+                // outside of the known twilight window, TwilightTracker
+                // will tell us when there is something new
+                temperature = getTwilightK(now);
+            }
+
+            if (nextChange > now) {
+                // wake up exactly when the output changes by one step
+                mHandler.postDelayed(mTransitionRunnable, nextChange - now);
+            }
         }
 
         if (DEBUG) {
             Slog.d(TAG, "updateColorTemperature mode=" + mode +
-                       " temperature=" + temperature + " mColorTemperature=" + mColorTemperature);
+                       " temperature=" + temperature + " mColorTemperature=" + mColorTemperature +
+                       " nextChange=" + nextChange);
         }
 
         setDisplayTemperature(temperature);
+    }
 
-        if (isTransitioning()) {
-            // fire again in 30 seconds
-            mHandler.postDelayed(mTransitionRunnable, DateUtils.MINUTE_IN_MILLIS / 2);
+    /**
+     * Precompute the points in time at which the quantized twilight
+     * temperature changes. The curve is valid from yesterday's sunset
+     * transition to the end of tomorrow's sunrise transition, and is only
+     * rebuilt when the twilight state or the configured temperatures change.
+     */
+    private void computeTwilightCurve() {
+        final TwilightState twilight = getTwilight();
+        if (twilight == mCurveTwilight
+                && mDayTemperature == mCurveDayTemperature
+                && mNightTemperature == mCurveNightTemperature) {
+            return;
+        }
+        mCurveTwilight = twilight;
+        mCurveDayTemperature = mDayTemperature;
+        mCurveNightTemperature = mNightTemperature;
+
+        if (twilight == null
+                || twilight.getYesterdaySunset() < 0 || twilight.getTodaySunrise() < 0
+                || twilight.getTodaySunset() < 0 || twilight.getTomorrowSunrise() < 0) {
+            // no transitions when the day or night never ends
+            mCurveTimes = new long[0];
+            mCurveTemperatures = new int[0];
+            return;
+        }
+
+        // the adjustment is monotonic between consecutive breakpoints
+        final long[] breakpoints = new long[] {
+                twilight.getYesterdaySunset() - TWILIGHT_ADJUSTMENT_TIME,
+                twilight.getYesterdaySunset(),
+                twilight.getTodaySunrise(),
+                twilight.getTodaySunrise() + TWILIGHT_ADJUSTMENT_TIME,
+                twilight.getTodaySunset() - TWILIGHT_ADJUSTMENT_TIME,
+                twilight.getTodaySunset(),
+                twilight.getTomorrowSunrise(),
+                twilight.getTomorrowSunrise() + TWILIGHT_ADJUSTMENT_TIME };
+        Arrays.sort(breakpoints);
+
+        final long start = breakpoints[0];
+        final long end = breakpoints[breakpoints.length - 1];
+
+        long[] times = new long[16];
+        int[] temperatures = new int[16];
+        int count = 0;
+
+        times[count] = start;
+        temperatures[count++] = getTwilightK(start);
+
+        for (int i = 1; i < breakpoints.length; i++) {
+            final long segmentEnd = breakpoints[i];
+            if (segmentEnd <= times[count - 1]) {
+                continue;
+            }
+            final int endTemperature = getTwilightK(segmentEnd);
+
+            // walk the segment one quantization step at a time
+            while (temperatures[count - 1] != endTemperature) {
+                final long t = findNextTwilightKChange(times[count - 1], segmentEnd,
+                        temperatures[count - 1]);
+                if (count == times.length) {
+                    times = Arrays.copyOf(times, count * 2);
+                    temperatures = Arrays.copyOf(temperatures, count * 2);
+                }
+                times[count] = t;
+                temperatures[count++] = getTwilightK(t);
+            }
+        }
+
+        // terminate the curve so the final value has a bounded lifetime
+        if (times[count - 1] < end) {
+            if (count == times.length) {
+                times = Arrays.copyOf(times, count + 1);
+                temperatures = Arrays.copyOf(temperatures, count + 1);
+            }
+            times[count] = end;
+            temperatures[count] = temperatures[count - 1];
+            count++;
+        }
+
+        mCurveTimes = Arrays.copyOf(times, count);
+        mCurveTemperatures = Arrays.copyOf(temperatures, count);
+
+        if (DEBUG) {
+            Slog.d(TAG, "computeTwilightCurve: " + count + " steps for " + twilight);
         }
     }
 
+    /**
+     * Binary search for the first time in (from, to] at which the twilight
+     * temperature differs from the given value. The caller guarantees that
+     * the value at {@code to} differs.
+     */
+    private long findNextTwilightKChange(long from, long to, int temperature) {
+        long lo = from;
+        long hi = to;
+        while (hi - lo > 1) {
+            final long mid = lo + (hi - lo) / 2;
+            if (getTwilightK(mid) == temperature) {
+                lo = mid;
+            } else {
+                hi = mid;
+            }
+        }
+        return hi;
+    }
+
     /**
      * Smoothly animate the current display color balance
      */
     private synchronized void animateColorBalance(int balance) {
 
         // always start with the current values in the hardware
-        int current = mHardware.getColorBalance();
+        int current = mHardwareState.getColorBalance();
 
         if (current == balance) {
             return;
@@ -219,6 +364,8 @@ public class ColorTemperatureController extends LiveDisplayFeature {
             mAnimator.removeAllUpdateListeners();
         }
 
+        mMetrics.count("ColorTemperatureController.animation");
+
         mAnimator = ValueAnimator.ofInt(current, balance);
         mAnimator.setDuration(duration);
         mAnimator.setInterpolator(mInterpolator);
@@ -226,7 +373,7 @@ public class ColorTemperatureController extends LiveDisplayFeature {
             synchronized (ColorTemperatureController.this) {
                 if (isScreenOn()) {
                     int value = (int) animation.getAnimatedValue();
-                    mHardware.setColorBalance(value);
+                    mHardwareState.setColorBalance(value);
                 }
             }
         });
@@ -302,21 +449,26 @@ public class ColorTemperatureController extends LiveDisplayFeature {
 
     /**
      * Determine the color temperature we should use for the display based on
-     * the position of the sun.
+     * the position of the sun. The result is quantized to TWILIGHT_TEMPERATURE_STEP
+     * so that the display is only touched when the change is meaningful.
      *
+     * @param now
      * @return color temperature in Kelvin
      */
-    private int getTwilightK() {
+    private int getTwilightK(long now) {
         float adjustment = 1.0f;
         final TwilightState twilight = getTwilight();
 
         if (twilight != null) {
-            final long now = System.currentTimeMillis();
             adjustment = adj(now, twilight.getYesterdaySunset(), twilight.getTodaySunrise()) *
                     adj(now, twilight.getTodaySunset(), twilight.getTomorrowSunrise());
         }
 
-        return (int)MathUtils.lerp(mNightTemperature, mDayTemperature, adjustment);
+        final int steps = Math.max(1,
+                Math.abs(mDayTemperature - mNightTemperature) / TWILIGHT_TEMPERATURE_STEP);
+        final float quantized = (float) Math.round(adjustment * steps) / steps;
+
+        return (int)MathUtils.lerp(mNightTemperature, mDayTemperature, quantized);
     }
 
     int getDefaultDayTemperature() {
@@ -26,10 +26,12 @@ import java.io.PrintWriter;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.BitSet;
+import java.util.Set;
 
 public class DisplayHardwareController extends LiveDisplayFeature {
 
     private final LineageHardwareManager mHardware;
+    private final HardwareStateCache mHardwareState;
 
     // hardware capabilities
     private final boolean mUseAutoContrast;
@@ -68,10 +70,12 @@ public class DisplayHardwareController extends LiveDisplayFeature {
     private static final Uri DISPLAY_ANTI_FLICKER =
             LineageSettings.System.getUriFor(LineageSettings.System.DISPLAY_ANTI_FLICKER);
 
-    public DisplayHardwareController(Context context, Handler handler) {
-        super(context, handler);
+    public DisplayHardwareController(Context context, Handler handler,
+            HardwareStateCache hardwareState, LiveDisplayMetrics metrics) {
+        super(context, handler, metrics);
 
         mHardware = LineageHardwareManager.getInstance(mContext);
+        mHardwareState = hardwareState;
         mUseCABC = mHardware
                 .isSupported(LineageHardwareManager.FEATURE_ADAPTIVE_BACKLIGHT);
         mDefaultCABC = mContext.getResources().getBoolean(
@@ -167,21 +171,21 @@ public class DisplayHardwareController extends LiveDisplayFeature {
     }
 
     @Override
-    public synchronized void onSettingsChanged(Uri uri) {
-        if (uri == null || uri.equals(DISPLAY_CABC)) {
+    public synchronized void onSettingsChanged(Set<Uri> uris) {
+        if (uris == null || uris.contains(DISPLAY_CABC)) {
             updateCABCMode();
         }
-        if (uri == null || uri.equals(DISPLAY_AUTO_CONTRAST)) {
+        if (uris == null || uris.contains(DISPLAY_AUTO_CONTRAST)) {
             updateAutoContrast();
         }
-        if (uri == null || uri.equals(DISPLAY_COLOR_ENHANCE)) {
+        if (uris == null || uris.contains(DISPLAY_COLOR_ENHANCE)) {
             updateColorEnhancement();
         }
-        if (uri == null || uri.equals(DISPLAY_COLOR_ADJUSTMENT)) {
+        if (uris == null || uris.contains(DISPLAY_COLOR_ADJUSTMENT)) {
             copyColors(getColorAdjustment(), mColorAdjustment);
             updateColorAdjustment();
         }
-        if (uri == null || uri.equals(DISPLAY_ANTI_FLICKER)) {
+        if (uris == null || uris.contains(DISPLAY_ANTI_FLICKER)) {
             updateAntiFlicker();
         }
     }
@@ -239,7 +243,7 @@ public class DisplayHardwareController extends LiveDisplayFeature {
         if (!mUseAutoContrast) {
             return;
         }
-        mHardware.set(LineageHardwareManager.FEATURE_AUTO_CONTRAST, isAutoContrastEnabled());
+        mHardwareState.set(LineageHardwareManager.FEATURE_AUTO_CONTRAST, isAutoContrastEnabled());
     }
 
     /**
@@ -249,7 +253,7 @@ public class DisplayHardwareController extends LiveDisplayFeature {
         if (!mUseColorEnhancement) {
             return;
         }
-        mHardware.set(LineageHardwareManager.FEATURE_COLOR_ENHANCEMENT,
+        mHardwareState.set(LineageHardwareManager.FEATURE_COLOR_ENHANCEMENT,
                 (!isLowPowerMode() || mDefaultColorEnhancement) && isColorEnhancementEnabled());
     }
 
@@ -260,7 +264,7 @@ public class DisplayHardwareController extends LiveDisplayFeature {
         if (!mUseCABC) {
             return;
         }
-        mHardware.set(LineageHardwareManager.FEATURE_ADAPTIVE_BACKLIGHT, isCABCEnabled());
+        mHardwareState.set(LineageHardwareManager.FEATURE_ADAPTIVE_BACKLIGHT, isCABCEnabled());
     }
 
     private synchronized void updateColorAdjustment() {
@@ -291,7 +295,7 @@ public class DisplayHardwareController extends LiveDisplayFeature {
         if (!mUseAntiFlicker) {
             return;
         }
-        mHardware.set(LineageHardwareManager.FEATURE_ANTI_FLICKER, isAntiFlickerEnabled());
+        mHardwareState.set(LineageHardwareManager.FEATURE_ANTI_FLICKER, isAntiFlickerEnabled());
     }
 
     /**
@@ -300,7 +304,7 @@ public class DisplayHardwareController extends LiveDisplayFeature {
     private synchronized void animateDisplayColor(float[] targetColors) {
 
         // always start with the current values in the hardware
-        int[] currentInts = mHardware.getDisplayColorCalibration();
+        int[] currentInts = mHardwareState.getDisplayColorCalibration();
         float[] currentColors = new float[] {
                 (float)currentInts[0] / (float)mMaxColor,
                 (float)currentInts[1] / (float)mMaxColor,
@@ -328,6 +332,8 @@ public class DisplayHardwareController extends LiveDisplayFeature {
             mAnimator.removeAllUpdateListeners();
         }
 
+        mMetrics.count("DisplayHardwareController.animation");
+
         mAnimator = ValueAnimator.ofObject(
                 new FloatArrayEvaluator(new float[3]), currentColors, targetColors);
         mAnimator.setDuration(duration);
@@ -336,7 +342,7 @@ public class DisplayHardwareController extends LiveDisplayFeature {
             synchronized (DisplayHardwareController.this) {
                 if (isScreenOn()) {
                     float[] value = (float[]) animation.getAnimatedValue();
-                    mHardware.setDisplayColorCalibration(new int[] {
+                    mHardwareState.setDisplayColorCalibration(new int[] {
                             (int) (value[0] * mMaxColor),
                             (int) (value[1] * mMaxColor),
                             (int) (value[2] * mMaxColor)
@@ -353,6 +359,7 @@ public class DisplayHardwareController extends LiveDisplayFeature {
      * hardware registers for display calibration to have an immediate effect.
      */
     private void screenRefresh() {
+        final long start = LiveDisplayMetrics.start();
         try {
             final IBinder flinger = ServiceManager.getService("SurfaceFlinger");
             if (flinger != null) {
@@ -364,6 +371,7 @@ public class DisplayHardwareController extends LiveDisplayFeature {
         } catch (RemoteException ex) {
             Slog.e(TAG, "Failed to refresh screen", ex);
         }
+        mMetrics.record("screen_refresh", start);
     }
 
     /**
@@ -0,0 +1,176 @@
+/*
+ * SPDX-FileCopyrightText: 2024 The LineageOS Project
+ * SPDX-License-Identifier: Apache-2.0
+ */
+package org.lineageos.platform.internal.display;
+
+import android.os.SystemClock;
+import android.text.format.DateUtils;
+import android.util.Slog;
+import android.util.SparseBooleanArray;
+
+import lineageos.hardware.LineageHardwareManager;
+
+import java.io.PrintWriter;
+import java.util.Arrays;
+
+/**
+ * Write-through cache of the values LiveDisplay last wrote to LineageHardwareManager.
+ *
+ * Every write goes to the HAL. Reads of the current color balance and color
+ * calibration, which the animations start from, are served from the cache
+ * instead of going over binder to the HAL. The cache is verified against
+ * the hardware at most every VERIFY_INTERVAL_MS, and is dropped when the
+ * panel may have lost its state (screen on). Boolean features are only
+ * recorded for dumpsys, as nothing reads them back.
+ */
+public class HardwareStateCache {
+
+    private static final String TAG = "LiveDisplay";
+
+    private static final long VERIFY_INTERVAL_MS = 10 * DateUtils.MINUTE_IN_MILLIS;
+
+    private final LineageHardwareManager mHardware;
+    private final LiveDisplayMetrics mMetrics;
+
+    // last written values
+    private final SparseBooleanArray mFeatures = new SparseBooleanArray();
+    private int mColorBalance;
+    private boolean mHasColorBalance;
+    private int[] mDisplayColorCalibration;
+
+    private long mLastVerifyTime;
+
+    // statistics
+    private long mHalReads;
+    private long mAvoidedReads;
+    private long mVerifications;
+    private long mMismatches;
+
+    public HardwareStateCache(LineageHardwareManager hardware, LiveDisplayMetrics metrics) {
+        mHardware = hardware;
+        mMetrics = metrics;
+        mLastVerifyTime = SystemClock.elapsedRealtime();
+    }
+
+    /**
+     * Forget everything we know about the hardware state, the next read
+     * of each value will go to the HAL.
+     */
+    public synchronized void invalidate() {
+        mFeatures.clear();
+        mHasColorBalance = false;
+        mDisplayColorCalibration = null;
+    }
+
+    public synchronized boolean set(int feature, boolean enable) {
+        final long start = LiveDisplayMetrics.start();
+        final boolean result = mHardware.set(feature, enable);
+        mMetrics.record(getMetricName(feature), start);
+        if (result) {
+            mFeatures.put(feature, enable);
+        } else {
+            mFeatures.delete(feature);
+        }
+        return result;
+    }
+
+    public synchronized int getColorBalance() {
+        if (mHasColorBalance && !shouldVerify()) {
+            mAvoidedReads++;
+            return mColorBalance;
+        }
+
+        final long start = LiveDisplayMetrics.start();
+        final int value = mHardware.getColorBalance();
+        mMetrics.record("hal.getColorBalance", start);
+        mHalReads++;
+        if (mHasColorBalance) {
+            verified(mColorBalance == value, "color balance");
+        }
+        mColorBalance = value;
+        mHasColorBalance = true;
+        return value;
+    }
+
+    public synchronized boolean setColorBalance(int value) {
+        final long start = LiveDisplayMetrics.start();
+        final boolean result = mHardware.setColorBalance(value);
+        mMetrics.record("hal.setColorBalance", start);
+        mColorBalance = value;
+        mHasColorBalance = result;
+        return result;
+    }
+
+    public synchronized int[] getDisplayColorCalibration() {
+        if (mDisplayColorCalibration != null && !shouldVerify()) {
+            mAvoidedReads++;
+            return Arrays.copyOf(mDisplayColorCalibration, 3);
+        }
+
+        final long start = LiveDisplayMetrics.start();
+        final int[] value = mHardware.getDisplayColorCalibration();
+        mMetrics.record("hal.getDisplayColorCalibration", start);
+        mHalReads++;
+        if (mDisplayColorCalibration != null) {
+            verified(Arrays.equals(mDisplayColorCalibration, value), "color calibration");
+        }
+        mDisplayColorCalibration = value == null ? null : Arrays.copyOf(value, 3);
+        return value;
+    }
+
+    public synchronized boolean setDisplayColorCalibration(int[] rgb) {
+        final long start = LiveDisplayMetrics.start();
+        final boolean result = mHardware.setDisplayColorCalibration(rgb);
+        mMetrics.record("hal.setDisplayColorCalibration", start);
+        mDisplayColorCalibration = result ? Arrays.copyOf(rgb, 3) : null;
+        return result;
+    }
+
+    private static String getMetricName(int feature) {
+        switch (feature) {
+            case LineageHardwareManager.FEATURE_ADAPTIVE_BACKLIGHT:
+                return "hal.set(ADAPTIVE_BACKLIGHT)";
+            case LineageHardwareManager.FEATURE_ANTI_FLICKER:
+                return "hal.set(ANTI_FLICKER)";
+            case LineageHardwareManager.FEATURE_AUTO_CONTRAST:
+                return "hal.set(AUTO_CONTRAST)";
+            case LineageHardwareManager.FEATURE_COLOR_ENHANCEMENT:
+                return "hal.set(COLOR_ENHANCEMENT)";
+            case LineageHardwareManager.FEATURE_READING_ENHANCEMENT:
+                return "hal.set(READING_ENHANCEMENT)";
+            case LineageHardwareManager.FEATURE_SUNLIGHT_ENHANCEMENT:
+                return "hal.set(SUNLIGHT_ENHANCEMENT)";
+        }
+        return "hal.set";
+    }
+
+    private boolean shouldVerify() {
+        final long now = SystemClock.elapsedRealtime();
+        if (now - mLastVerifyTime < VERIFY_INTERVAL_MS) {
+            return false;
+        }
+        mLastVerifyTime = now;
+        return true;
+    }
+
+    private void verified(boolean matches, String what) {
+        mVerifications++;
+        if (!matches) {
+            mMismatches++;
+            Slog.w(TAG, "Shadow state for " + what + " did not match the hardware");
+        }
+    }
+
+    public synchronized void dump(PrintWriter pw) {
+        pw.println();
+        pw.println("HardwareStateCache State:");
+        pw.println("  mFeatures=" + mFeatures);
+        pw.println("  mColorBalance=" + (mHasColorBalance ? mColorBalance : "unknown"));
+        pw.println("  mDisplayColorCalibration=" + Arrays.toString(mDisplayColorCalibration));
+        pw.println("  mHalReads=" + mHalReads);
+        pw.println("  mAvoidedReads=" + mAvoidedReads);
+        pw.println("  mVerifications=" + mVerifications);
+        pw.println("  mMismatches=" + mMismatches);
+    }
+}
@@ -12,6 +12,7 @@ import static org.lineageos.platform.internal.display.LiveDisplayService.TWILIGH
 
 import android.content.Context;
 import android.hardware.display.ColorDisplayManager;
+import android.net.Uri;
 import android.os.Handler;
 import android.util.Log;
 
@@ -20,6 +21,8 @@ import org.lineageos.platform.internal.display.LiveDisplayService.State;
 import org.lineageos.platform.internal.display.TwilightTracker.TwilightState;
 
 import java.util.BitSet;
+import java.util.Collections;
+import java.util.Set;
 
 public abstract class LiveDisplayFeature extends LineageBaseFeature {
 
@@ -28,33 +31,111 @@ public abstract class LiveDisplayFeature extends LineageBaseFeature {
 
     protected final boolean mNightDisplayAvailable;
 
+    protected final LiveDisplayMetrics mMetrics;
+
+    private final String mMetricScreen;
+    private final String mMetricTwilight;
+    private final String mMetricUpdate;
+    private final String mMetricSettings;
+    private final String mMetricSettingRead;
+
     private State mState;
 
-    public LiveDisplayFeature(Context context, Handler handler) {
+    private BatchedSettingsObserver mBatchedSettingsObserver;
+
+    public LiveDisplayFeature(Context context, Handler handler, LiveDisplayMetrics metrics) {
         super(context, handler);
         mNightDisplayAvailable = ColorDisplayManager.isNightDisplayAvailable(mContext);
+        mMetrics = metrics;
+
+        final String name = getClass().getSimpleName();
+        mMetricScreen = name + ".screen";
+        mMetricTwilight = name + ".twilight";
+        mMetricUpdate = name + ".update";
+        mMetricSettings = name + ".settings";
+        mMetricSettingRead = name + ".settingRead";
     }
 
     public abstract boolean getCapabilities(final BitSet caps);
 
     protected abstract void onUpdate();
 
+    /**
+     * Called with all settings which changed since the last call.
+     *
+     * @param uris the changed settings, or null if all of them should be reloaded
+     */
+    protected abstract void onSettingsChanged(Set<Uri> uris);
+
+    @Override
+    protected final void onSettingsChanged(Uri uri) {
+        onSettingsChanged(uri == null ? null : Collections.singleton(uri));
+    }
+
+    /**
+     * Start the feature, observing its settings through the given shared observer.
+     */
+    void start(BatchedSettingsObserver observer) {
+        mBatchedSettingsObserver = observer;
+        start();
+    }
+
+    @Override
+    protected void registerSettings(Uri... settings) {
+        if (mBatchedSettingsObserver != null) {
+            mBatchedSettingsObserver.register(this, settings);
+        } else {
+            super.registerSettings(settings);
+        }
+    }
+
+    @Override
+    public void onDestroy() {
+        // features on the shared observer never registered one of their own,
+        // the shared one lives as long as LiveDisplayService
+        if (mBatchedSettingsObserver == null) {
+            super.onDestroy();
+        }
+    }
+
     void update(final int flags, final State state) {
         mState = state;
         if ((flags & DISPLAY_CHANGED) != 0) {
+            final long start = LiveDisplayMetrics.start();
             onScreenStateChanged();
+            mMetrics.record(mMetricScreen, start);
         }
         if (((flags & TWILIGHT_CHANGED) != 0) && mState.mTwilight != null) {
+            final long start = LiveDisplayMetrics.start();
             onTwilightUpdated();
+            mMetrics.record(mMetricTwilight, start);
         }
         if ((flags & MODE_CHANGED) != 0) {
+            final long start = LiveDisplayMetrics.start();
             onUpdate();
+            mMetrics.record(mMetricUpdate, start);
         }
         if (flags == ALL_CHANGED) {
-            onSettingsChanged(null);
+            dispatchSettingsBatch(null);
         }
     }
 
+    @Override
+    protected void dispatchSettingsChanged(Uri uri) {
+        dispatchSettingsBatch(uri == null ? null : Collections.singleton(uri));
+    }
+
+    void dispatchSettingsBatch(Set<Uri> uris) {
+        final long start = LiveDisplayMetrics.start();
+        onSettingsChanged(uris);
+        mMetrics.record(mMetricSettings, start);
+    }
+
+    @Override
+    protected void onSettingRead() {
+        mMetrics.count(mMetricSettingRead);
+    }
+
     protected void onScreenStateChanged() { }
 
     protected void onTwilightUpdated() { }
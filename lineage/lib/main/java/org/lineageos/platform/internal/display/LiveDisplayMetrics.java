@@ -0,0 +1,166 @@
+/*
+ * SPDX-FileCopyrightText: 2024 The LineageOS Project
+ * SPDX-License-Identifier: Apache-2.0
+ */
+package org.lineageos.platform.internal.display;
+
+import android.os.SystemClock;
+import android.text.format.DateUtils;
+import android.util.ArrayMap;
+import android.util.JsonWriter;
+
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.Locale;
+
+/**
+ * Counters and latency histograms for the work LiveDisplay does,
+ * such as hardware writes, screen refreshes, animations, settings
+ * changes and reads, and sensor events.
+ *
+ * Events are keyed by name, e.g. "hal.setColorBalance" or
+ * "ColorTemperatureController.update". Latencies are bucketed on a
+ * fixed logarithmic scale so recording never allocates after the
+ * first event of a given name.
+ */
+public class LiveDisplayMetrics {
+
+    // upper bounds of the latency buckets in microseconds, the last bucket is unbounded
+    private static final long[] BUCKETS_US = { 16, 64, 256, 1024, 4096, 16384, 65536 };
+
+    private final ArrayMap<String, Metric> mMetrics = new ArrayMap<>();
+
+    private long mStartTime = SystemClock.elapsedRealtime();
+
+    private static final class Metric {
+        long mCount;
+        long mTotalNanos;
+        long mMaxNanos;
+        final long[] mBuckets = new long[BUCKETS_US.length + 1];
+        boolean mTimed;
+    }
+
+    /**
+     * Count an event which has no meaningful duration.
+     */
+    public synchronized void count(String name) {
+        getMetric(name).mCount++;
+    }
+
+    /**
+     * Count an event and record the time since {@code startNanos}, which must
+     * be a value obtained from {@link #start()}.
+     */
+    public synchronized void record(String name, long startNanos) {
+        final long duration = SystemClock.elapsedRealtimeNanos() - startNanos;
+        final Metric metric = getMetric(name);
+        metric.mCount++;
+        metric.mTimed = true;
+        metric.mTotalNanos += duration;
+        metric.mMaxNanos = Math.max(metric.mMaxNanos, duration);
+
+        final long us = duration / 1000;
+        int bucket = 0;
+        while (bucket < BUCKETS_US.length && us >= BUCKETS_US[bucket]) {
+            bucket++;
+        }
+        metric.mBuckets[bucket]++;
+    }
+
+    /**
+     * @return a timestamp to pass to {@link #record}
+     */
+    public static long start() {
+        return SystemClock.elapsedRealtimeNanos();
+    }
+
+    public synchronized void reset() {
+        mMetrics.clear();
+        mStartTime = SystemClock.elapsedRealtime();
+    }
+
+    private Metric getMetric(String name) {
+        Metric metric = mMetrics.get(name);
+        if (metric == null) {
+            metric = new Metric();
+            mMetrics.put(name, metric);
+        }
+        return metric;
+    }
+
+    private static double perHour(long count, long elapsed) {
+        return elapsed <= 0 ? 0 : (double) count * DateUtils.HOUR_IN_MILLIS / elapsed;
+    }
+
+    public synchronized void dump(PrintWriter pw) {
+        final long elapsed = SystemClock.elapsedRealtime() - mStartTime;
+
+        pw.println();
+        pw.println("LiveDisplay Metrics:");
+        pw.println("  elapsed=" + DateUtils.formatElapsedTime(elapsed / 1000));
+        for (int i = 0; i < mMetrics.size(); i++) {
+            final Metric metric = mMetrics.valueAt(i);
+            final StringBuilder sb = new StringBuilder();
+            sb.append("  ").append(mMetrics.keyAt(i))
+                    .append(": count=").append(metric.mCount)
+                    .append(String.format(Locale.US, " (%.1f/h)",
+                            perHour(metric.mCount, elapsed)));
+            if (metric.mTimed) {
+                sb.append(String.format(Locale.US, " avg=%.1fus max=%.1fus",
+                        metric.mTotalNanos / 1000.0 / metric.mCount,
+                        metric.mMaxNanos / 1000.0));
+                sb.append(" histogram=[");
+                for (int b = 0; b < metric.mBuckets.length; b++) {
+                    if (b > 0) {
+                        sb.append(", ");
+                    }
+                    sb.append(b < BUCKETS_US.length ? "<" + BUCKETS_US[b] + "us" : ">=" +
+                            BUCKETS_US[BUCKETS_US.length - 1] + "us");
+                    sb.append(":").append(metric.mBuckets[b]);
+                }
+                sb.append("]");
+            }
+            pw.println(sb.toString());
+        }
+    }
+
+    /**
+     * Write all metrics as a single JSON object, for consumption by tools.
+     */
+    public synchronized void dumpJson(PrintWriter pw) throws IOException {
+        final long elapsed = SystemClock.elapsedRealtime() - mStartTime;
+
+        final JsonWriter writer = new JsonWriter(pw);
+        writer.beginObject();
+        writer.name("elapsed_ms").value(elapsed);
+
+        writer.name("buckets_us").beginArray();
+        for (long bound : BUCKETS_US) {
+            writer.value(bound);
+        }
+        writer.endArray();
+
+        writer.name("metrics").beginObject();
+        for (int i = 0; i < mMetrics.size(); i++) {
+            final Metric metric = mMetrics.valueAt(i);
+            writer.name(mMetrics.keyAt(i)).beginObject();
+            writer.name("count").value(metric.mCount);
+            writer.name("per_hour").value(perHour(metric.mCount, elapsed));
+            if (metric.mTimed) {
+                writer.name("total_ns").value(metric.mTotalNanos);
+                writer.name("max_ns").value(metric.mMaxNanos);
+                writer.name("histogram").beginArray();
+                for (long bucket : metric.mBuckets) {
+                    writer.value(bucket);
+                }
+                writer.endArray();
+            }
+            writer.endObject();
+        }
+        writer.endObject();
+
+        writer.endObject();
+        writer.flush();
+        pw.println();
+    }
+}
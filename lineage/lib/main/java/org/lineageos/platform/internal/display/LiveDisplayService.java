@@ -32,6 +32,7 @@ import com.android.server.ServiceThread;
 import lineageos.app.LineageContextConstants;
 import lineageos.hardware.HSIC;
 import lineageos.hardware.ILiveDisplayService;
+import lineageos.hardware.LineageHardwareManager;
 import lineageos.hardware.LiveDisplayConfig;
 import lineageos.providers.LineageSettings;
 
@@ -41,6 +42,7 @@ import org.lineageos.platform.internal.display.TwilightTracker.TwilightListener;
 import org.lineageos.platform.internal.display.TwilightTracker.TwilightState;
 
 import java.io.FileDescriptor;
+import java.io.IOException;
 import java.io.PrintWriter;
 import java.util.ArrayList;
 import java.util.BitSet;
@@ -61,6 +63,8 @@ public class LiveDisplayService extends LineageSystemService {
 
     private static final String TAG = "LiveDisplay";
 
+    private static final String METRIC_SETTING_READ = "LiveDisplayService.settingRead";
+
     private final Context mContext;
     private final Handler mHandler;
     private final ServiceThread mHandlerThread;
@@ -81,6 +85,10 @@ public class LiveDisplayService extends LineageSystemService {
 
     private LiveDisplayConfig mConfig;
 
+    private HardwareStateCache mHardwareState;
+    private BatchedSettingsObserver mSettingsObserver;
+    private final LiveDisplayMetrics mMetrics = new LiveDisplayMetrics();
+
     static int MODE_CHANGED = 1;
     static int DISPLAY_CHANGED = 2;
     static int TWILIGHT_CHANGED = 4;
@@ -141,16 +149,20 @@ public class LiveDisplayService extends LineageSystemService {
 
             mAwaitingNudge = getSunsetCounter() < 1;
 
-            mDHC = new DisplayHardwareController(mContext, mHandler);
+            mHardwareState = new HardwareStateCache(
+                    LineageHardwareManager.getInstance(mContext), mMetrics);
+
+            mDHC = new DisplayHardwareController(mContext, mHandler, mHardwareState, mMetrics);
             mFeatures.add(mDHC);
 
-            mCTC = new ColorTemperatureController(mContext, mHandler, mDHC);
+            mCTC = new ColorTemperatureController(mContext, mHandler, mDHC, mHardwareState,
+                    mMetrics);
             mFeatures.add(mCTC);
 
-            mOMC = new OutdoorModeController(mContext, mHandler);
+            mOMC = new OutdoorModeController(mContext, mHandler, mHardwareState, mMetrics);
             mFeatures.add(mOMC);
 
-            mPAC = new PictureAdjustmentController(mContext, mHandler);
+            mPAC = new PictureAdjustmentController(mContext, mHandler, mMetrics);
             mFeatures.add(mPAC);
 
             // Get capabilities, throw out any unused features
@@ -196,9 +208,10 @@ public class LiveDisplayService extends LineageSystemService {
                 mState.mMode = mModeObserver.getMode();
             }
 
-            // start and update all features
+            // start and update all features, sharing a single settings observer
+            mSettingsObserver = new BatchedSettingsObserver(mContext, mHandler);
             for (int i = 0; i < mFeatures.size(); i++) {
-                mFeatures.get(i).start();
+                mFeatures.get(i).start(mSettingsObserver);
             }
 
             updateFeatures(ALL_CHANGED);
@@ -347,6 +360,21 @@ public class LiveDisplayService extends LineageSystemService {
         public void dump(FileDescriptor fd, PrintWriter pw, String[] args) {
             mContext.enforceCallingOrSelfPermission(android.Manifest.permission.DUMP, TAG);
 
+            if (args != null && args.length > 0) {
+                if ("--metrics-json".equals(args[0])) {
+                    try {
+                        mMetrics.dumpJson(pw);
+                    } catch (IOException e) {
+                        pw.println("Failed to write metrics: " + e);
+                    }
+                    return;
+                } else if ("--reset-metrics".equals(args[0])) {
+                    mMetrics.reset();
+                    pw.println("LiveDisplay metrics reset");
+                    return;
+                }
+            }
+
             pw.println();
             pw.println("LiveDisplay Service State:");
             pw.println("  mState=" + mState.toString());
@@ -356,6 +384,12 @@ public class LiveDisplayService extends LineageSystemService {
             for (int i = 0; i < mFeatures.size(); i++) {
                 mFeatures.get(i).dump(pw);
             }
+
+            if (mHardwareState != null) {
+                mHardwareState.dump(pw);
+            }
+
+            mMetrics.dump(pw);
         }
 
         @Override
@@ -394,6 +428,10 @@ public class LiveDisplayService extends LineageSystemService {
                 boolean screenOn = isScreenOn();
                 if (screenOn != mState.mScreenOn) {
                     mState.mScreenOn = screenOn;
+                    if (screenOn) {
+                        // the panel may have lost its state while it was off
+                        mHardwareState.invalidate();
+                    }
                     updateFeatures(DISPLAY_CHANGED);
                 }
             }
@@ -479,6 +517,7 @@ public class LiveDisplayService extends LineageSystemService {
     private int getSunsetCounter() {
         // Counter used to determine when we should tell the user about this feature.
         // If it's not used after 3 sunsets, we'll show the hint once.
+        mMetrics.count(METRIC_SETTING_READ);
         return LineageSettings.System.getIntForUser(mContext.getContentResolver(),
                 LineageSettings.System.LIVE_DISPLAY_HINTED,
                 -3,
@@ -554,6 +593,7 @@ public class LiveDisplayService extends LineageSystemService {
     }
 
     private int getInt(String setting, int defValue) {
+        mMetrics.count(METRIC_SETTING_READ);
         return LineageSettings.System.getIntForUser(mContext.getContentResolver(),
                 setting, defValue, UserHandle.USER_CURRENT);
     }
@@ -19,10 +19,12 @@ import lineageos.providers.LineageSettings;
 
 import java.io.PrintWriter;
 import java.util.BitSet;
+import java.util.Set;
 
 public class OutdoorModeController extends LiveDisplayFeature {
 
     private final LineageHardwareManager mHardware;
+    private final HardwareStateCache mHardwareState;
     private AmbientLuxObserver mLuxObserver;
 
     // hardware capabilities
@@ -40,10 +42,12 @@ public class OutdoorModeController extends LiveDisplayFeature {
     // sliding window for sensor event smoothing
     private static final int SENSOR_WINDOW_MS = 3000;
 
-    public OutdoorModeController(Context context, Handler handler) {
-        super(context, handler);
+    public OutdoorModeController(Context context, Handler handler,
+            HardwareStateCache hardwareState, LiveDisplayMetrics metrics) {
+        super(context, handler, metrics);
 
         mHardware = LineageHardwareManager.getInstance(mContext);
+        mHardwareState = hardwareState;
         mUseOutdoorMode = mHardware.isSupported(LineageHardwareManager.FEATURE_SUNLIGHT_ENHANCEMENT);
 
         mDefaultOutdoorLux = mContext.getResources().getInteger(
@@ -61,7 +65,7 @@ public class OutdoorModeController extends LiveDisplayFeature {
         }
 
         mLuxObserver = new AmbientLuxObserver(mContext, mHandler.getLooper(),
-                mDefaultOutdoorLux, mOutdoorLuxHysteresis, SENSOR_WINDOW_MS);
+                mDefaultOutdoorLux, mOutdoorLuxHysteresis, SENSOR_WINDOW_MS, mMetrics);
 
         registerSettings(
                 LineageSettings.System.getUriFor(LineageSettings.System.DISPLAY_AUTO_OUTDOOR_MODE));
@@ -99,12 +103,12 @@ public class OutdoorModeController extends LiveDisplayFeature {
         // face if they turn it back on in normal conditions
         if (!isScreenOn() && getMode() != MODE_OUTDOOR) {
             mIsOutdoor = false;
-            mHardware.set(LineageHardwareManager.FEATURE_SUNLIGHT_ENHANCEMENT, false);
+            mHardwareState.set(LineageHardwareManager.FEATURE_SUNLIGHT_ENHANCEMENT, false);
         }
     }
 
     @Override
-    public synchronized void onSettingsChanged(Uri uri) {
+    public synchronized void onSettingsChanged(Set<Uri> uris) {
         updateOutdoorMode();
     }
 
@@ -197,7 +201,7 @@ public class OutdoorModeController extends LiveDisplayFeature {
                     }
                 }
             }
-            mHardware.set(LineageHardwareManager.FEATURE_SUNLIGHT_ENHANCEMENT, enabled);
+            mHardwareState.set(LineageHardwareManager.FEATURE_SUNLIGHT_ENHANCEMENT, enabled);
         }
     }
 
@@ -23,6 +23,7 @@ import java.io.PrintWriter;
 import java.util.ArrayList;
 import java.util.BitSet;
 import java.util.List;
+import java.util.Set;
 
 public class PictureAdjustmentController extends LiveDisplayFeature {
 
@@ -34,8 +35,9 @@ public class PictureAdjustmentController extends LiveDisplayFeature {
 
     private List<Range<Float>> mRanges = new ArrayList<Range<Float>>();
 
-    public PictureAdjustmentController(Context context, Handler handler) {
-        super(context, handler);
+    public PictureAdjustmentController(Context context, Handler handler,
+            LiveDisplayMetrics metrics) {
+        super(context, handler, metrics);
         mHardware = LineageHardwareManager.getInstance(context);
         mHasDisplayModes = mHardware.isSupported(LineageHardwareManager.FEATURE_DISPLAY_MODES);
 
@@ -73,7 +75,7 @@ public class PictureAdjustmentController extends LiveDisplayFeature {
     }
 
     @Override
-    protected void onSettingsChanged(Uri uri) {// nothing to do for mode switch
+    protected void onSettingsChanged(Set<Uri> uris) {// nothing to do for mode switch
         updatePictureAdjustment();
     }
 
@@ -86,7 +88,10 @@ public class PictureAdjustmentController extends LiveDisplayFeature {
         if (mUsePictureAdjustment && isScreenOn()) {
             final HSIC hsic = getPictureAdjustment();
             if (hsic != null) {
-                if (!mHardware.setPictureAdjustment(hsic)) {
+                final long start = LiveDisplayMetrics.start();
+                final boolean result = mHardware.setPictureAdjustment(hsic);
+                mMetrics.record("hal.setPictureAdjustment", start);
+                if (!result) {
                     Slog.e(TAG, "Failed to set picture adjustment! " + hsic.toString());
                 }
             }
@@ -109,4 +109,16 @@ public class TwilightCalculator {
         }
     }
 
+    /**
+     * Returns the solar day (days since Jan 1, 2000) whose solar transit is the one
+     * used by {@link #calculateTwilight} for the given time and longitude.
+     *
+     * @param time time in milliseconds.
+     * @param longitude longitude in degrees.
+     */
+    public static long getSolarDay(long time, double longitude) {
+        final float daysSince2000 = (float) (time - UTC_2000) / DateUtils.DAY_IN_MILLIS;
+        final double arcLongitude = -longitude / 360;
+        return Math.round(daysSince2000 - J0 - arcLongitude);
+    }
 }
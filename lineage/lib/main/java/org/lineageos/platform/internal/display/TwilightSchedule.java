@@ -0,0 +1,113 @@
+/*
+ * SPDX-FileCopyrightText: 2024 The LineageOS Project
+ * SPDX-License-Identifier: Apache-2.0
+ */
+
+package org.lineageos.platform.internal.display;
+
+import android.text.format.DateUtils;
+
+import org.lineageos.platform.internal.display.TwilightTracker.TwilightState;
+
+/**
+ * An immutable, precomputed table of civil sunrise and sunset times for a
+ * location, covering yesterday and the next SCHEDULE_DAYS days.
+ *
+ * The schedule depends only on the coordinates and the time passed in, so it
+ * can be built and queried with synthetic locations and clocks.
+ *
+ * @hide
+ */
+public final class TwilightSchedule {
+
+    /** Number of days after today covered by a schedule */
+    static final int SCHEDULE_DAYS = 7;
+
+    private final double mLatitude;
+    private final double mLongitude;
+
+    // solar day of the first entry, see TwilightCalculator.getSolarDay()
+    private final long mFirstDay;
+
+    private final long[] mSunrises;
+    private final long[] mSunsets;
+    private final boolean[] mNights;
+
+    private TwilightSchedule(double latitude, double longitude, long firstDay,
+            long[] sunrises, long[] sunsets, boolean[] nights) {
+        mLatitude = latitude;
+        mLongitude = longitude;
+        mFirstDay = firstDay;
+        mSunrises = sunrises;
+        mSunsets = sunsets;
+        mNights = nights;
+    }
+
+    /**
+     * Computes the schedule for the given location, starting the day before {@code now}.
+     *
+     * @param now time in milliseconds.
+     * @param latitude latitude in degrees.
+     * @param longitude longitude in degrees.
+     */
+    public static TwilightSchedule compute(long now, double latitude, double longitude) {
+        final TwilightCalculator calculator = new TwilightCalculator();
+        final int count = SCHEDULE_DAYS + 2;
+        final long[] sunrises = new long[count];
+        final long[] sunsets = new long[count];
+        final boolean[] nights = new boolean[count];
+
+        final long start = now - DateUtils.DAY_IN_MILLIS;
+        for (int i = 0; i < count; i++) {
+            calculator.calculateTwilight(start + i * DateUtils.DAY_IN_MILLIS,
+                    latitude, longitude);
+            sunrises[i] = calculator.mSunrise;
+            sunsets[i] = calculator.mSunset;
+            // only meaningful when the day or night never ends
+            nights[i] = calculator.mState == TwilightCalculator.NIGHT;
+        }
+
+        return new TwilightSchedule(latitude, longitude,
+                TwilightCalculator.getSolarDay(start, longitude),
+                sunrises, sunsets, nights);
+    }
+
+    public double getLatitude() {
+        return mLatitude;
+    }
+
+    public double getLongitude() {
+        return mLongitude;
+    }
+
+    /**
+     * Returns true if {@link #getStateAt} can answer for the given time.
+     */
+    public boolean covers(long time) {
+        final long index = TwilightCalculator.getSolarDay(time, mLongitude) - mFirstDay;
+        return index >= 1 && index < mSunrises.length - 1;
+    }
+
+    /**
+     * Returns the twilight state at the given time, or null if the time
+     * is outside of this schedule.
+     */
+    public TwilightState getStateAt(long time) {
+        if (!covers(time)) {
+            return null;
+        }
+        final int today = (int) (TwilightCalculator.getSolarDay(time, mLongitude) - mFirstDay);
+
+        final long sunrise = mSunrises[today];
+        final long sunset = mSunsets[today];
+        final boolean isNight;
+        if (sunrise == -1 || sunset == -1) {
+            isNight = mNights[today];
+        } else {
+            isNight = !(sunrise < time && sunset > time);
+        }
+
+        return new TwilightState(isNight, mSunsets[today - 1],
+                sunrise, sunset, mSunrises[today + 1]);
+    }
+}
@@ -49,7 +49,9 @@ public final class TwilightTracker {
 
     private final ArrayList<TwilightListenerRecord> mListeners = new ArrayList<>();
 
-    private TwilightState mTwilightState;
+    // Published without locking, only written from the LocationHandler
+    private volatile TwilightState mTwilightState;
+    private volatile TwilightSchedule mTwilightSchedule;
 
     private final Context mContext;
 
@@ -74,9 +76,16 @@ public final class TwilightTracker {
      * @return The current twilight state, or null if no information is available.
      */
     public TwilightState getCurrentState() {
-        synchronized (mLock) {
-            return mTwilightState;
-        }
+        return mTwilightState;
+    }
+
+    /**
+     * Gets the precomputed sunrise/sunset schedule for the current location.
+     *
+     * @return The current schedule, or null if no location is known yet.
+     */
+    public TwilightSchedule getCurrentSchedule() {
+        return mTwilightSchedule;
     }
 
     /**
@@ -159,7 +168,6 @@ public final class TwilightTracker {
         private long mLastNetworkRegisterTime = -MIN_LOCATION_UPDATE_MS;
         private long mLastUpdateInterval;
         private Location mLocation;
-        private final TwilightCalculator mTwilightCalculator = new TwilightCalculator();
 
         public void processNewLocation(Location location) {
             Message msg = obtainMessage(MSG_PROCESS_NEW_LOCATION, location);
@@ -334,37 +342,36 @@ public final class TwilightTracker {
 
         private void updateTwilightState() {
             if (mLocation == null) {
+                mTwilightSchedule = null;
                 setTwilightState(null);
                 return;
             }
 
             final long now = System.currentTimeMillis();
 
-            // calculate yesterday's twilight
-            mTwilightCalculator.calculateTwilight(now - DateUtils.DAY_IN_MILLIS,
-                    mLocation.getLatitude(), mLocation.getLongitude());
-            final long yesterdaySunset = mTwilightCalculator.mSunset;
-
-            // calculate today's twilight
-            mTwilightCalculator.calculateTwilight(now,
-                    mLocation.getLatitude(), mLocation.getLongitude());
-            final boolean isNight = (mTwilightCalculator.mState == TwilightCalculator.NIGHT);
-            final long todaySunrise = mTwilightCalculator.mSunrise;
-            final long todaySunset = mTwilightCalculator.mSunset;
-
-            // calculate tomorrow's twilight
-            mTwilightCalculator.calculateTwilight(now + DateUtils.DAY_IN_MILLIS,
-                    mLocation.getLatitude(), mLocation.getLongitude());
-            final long tomorrowSunrise = mTwilightCalculator.mSunrise;
+            // only recalculate the sun schedule if we moved far enough or ran out of days
+            TwilightSchedule schedule = mTwilightSchedule;
+            if (schedule == null || !schedule.covers(now)
+                    || isFarFrom(schedule, mLocation)) {
+                schedule = TwilightSchedule.compute(now,
+                        mLocation.getLatitude(), mLocation.getLongitude());
+                mTwilightSchedule = schedule;
+                if (DEBUG) {
+                    Slog.d(TAG, "Computed new twilight schedule for " + mLocation);
+                }
+            }
 
             // set twilight state
-            TwilightState state = new TwilightState(isNight, yesterdaySunset,
-                    todaySunrise, todaySunset, tomorrowSunrise);
+            final TwilightState state = schedule.getStateAt(now);
             if (DEBUG) {
                 Slog.d(TAG, "Updating twilight state: " + state);
             }
             setTwilightState(state);
 
+            final long todaySunrise = state.getTodaySunrise();
+            final long todaySunset = state.getTodaySunset();
+            final long tomorrowSunrise = state.getTomorrowSunrise();
+
             // schedule next update
             long nextUpdate = 0;
             if (todaySunrise == -1 || todaySunset == -1) {
@@ -393,6 +400,13 @@ public final class TwilightTracker {
             mAlarmManager.cancel(pendingIntent);
             mAlarmManager.setExact(AlarmManager.RTC, nextUpdate, pendingIntent);
         }
+
+        private boolean isFarFrom(TwilightSchedule schedule, Location location) {
+            final float[] distance = new float[1];
+            Location.distanceBetween(schedule.getLatitude(), schedule.getLongitude(),
+                    location.getLatitude(), location.getLongitude(), distance);
+            return distance[0] >= LOCATION_UPDATE_DISTANCE_METER;
+        }
     }
 
     private final BroadcastReceiver mUpdateLocationReceiver = new BroadcastReceiver() {
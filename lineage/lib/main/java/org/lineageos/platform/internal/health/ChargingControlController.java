@@ -21,6 +21,7 @@ import android.content.Intent;
 import android.content.IntentFilter;
 import android.net.Uri;
 import android.os.BatteryManager;
+import android.os.Environment;
 import android.os.Handler;
 import android.os.RemoteException;
 import android.os.ServiceManager;
@@ -37,6 +38,7 @@ import org.lineageos.platform.internal.health.ccprovider.Toggle;
 
 import vendor.lineage.health.IChargingControl;
 
+import java.io.File;
 import java.io.PrintWriter;
 
 public class ChargingControlController extends LineageHealthFeature {
@@ -65,10 +67,55 @@ public class ChargingControlController extends LineageHealthFeature {
     private final Uri TARGET_TIME_URI = LineageSettings.System.getUriFor(
             LineageSettings.System.CHARGING_CONTROL_TARGET_TIME);
 
+    // Cached settings, reloaded when any of them changes
+    private boolean mEnabled;
+    private int mMode;
+    private int mLimitSetting;
+    private int mStartTime;
+    private int mTargetTime;
+
+    // Cached next alarm clock, only valid while mAlarmBroadcastReceiver is registered
+    private boolean mNextAlarmValid;
+    private long mNextAlarmTime;
+
     // Internal state
     private float mBatteryPct;
     private boolean mIsPowerConnected;
     private boolean mIsControlCancelledOnce;
+    private ChargeTime mLastChargeTime;
+
+    // Last battery broadcast which was acted upon
+    private int mLastLevel = -1;
+    private int mLastScale = -1;
+    // -1 until the first battery broadcast
+    private int mLastPlugged = -1;
+
+    // Exact wakeup for the next time based decision, 0 if none is scheduled
+    private long mNextUpdateTime;
+    private final AlarmManager.OnAlarmListener mNextUpdateListener = () -> {
+        Log.i(TAG, "Scheduled update reached, update charge control");
+        mNextUpdateTime = 0;
+        updateChargeControl();
+    };
+
+    // Current charging session, see ChargingHistory
+    private ChargingHistory mHistory;
+    private long mSessionPlugTime;
+    private int mSessionStartLevel;
+    private int mSessionLevel;
+    private long mPredictedUnplugTime = -1;
+    // Charge rate of the current session, from consecutive level increases
+    private int mRateLevel;
+    private long mRateTime;
+    private long mRateTotalMs;
+    private int mRateTotalPct;
+
+    // Level increases further apart than this are from paused charging
+    private static final long MAX_RATE_INTERVAL_MS = 30 * DateUtils.MINUTE_IN_MILLIS;
+
+    // Statistics
+    private long mProcessedBroadcasts;
+    private long mSkippedBroadcasts;
 
     // Current selected provider
     private ChargingControlProvider mCurrentProvider;
@@ -90,6 +137,8 @@ public class ChargingControlController extends LineageHealthFeature {
         }
 
         mChargingNotification = new ChargingControlNotification(context, this);
+        mHistory = new ChargingHistory(context,
+                new File(Environment.getDataSystemDirectory(), "charging_history.bin"));
 
         mDefaultEnabled = mContext.getResources().getBoolean(
                 R.bool.config_chargingControlEnabled);
@@ -242,6 +291,7 @@ public class ChargingControlController extends LineageHealthFeature {
 
         // Register setting observer
         registerSettings(MODE_URI, LIMIT_URI, ENABLED_URI, START_TIME_URI, TARGET_TIME_URI);
+        loadSettings();
 
         // For devices that do not support bypass, we can only always listen to battery change
         // because we can't distinguish between "unplugged" and "plugged in but not charging".
@@ -332,7 +382,18 @@ public class ChargingControlController extends LineageHealthFeature {
         mChargingNotification.cancel();
     }
 
+    private void loadSettings() {
+        mEnabled = isEnabled();
+        mMode = getMode();
+        mLimitSetting = getLimit();
+        mStartTime = getStartTime();
+        mTargetTime = getTargetTime();
+        mNextAlarmValid = false;
+    }
+
     private void onPowerConnected() {
+        // Act on the sticky broadcast delivered when registering
+        mLastLevel = -1;
         if (mBattReceiver == null) {
             mBattReceiver = new LineageHealthBatteryBroadcastReceiver();
         } else {
@@ -350,11 +411,53 @@ public class ChargingControlController extends LineageHealthFeature {
 
         // On disconnected, reset internal state
         resetInternalState();
+        cancelNextUpdate();
+        endSession();
+    }
+
+    private void trackSession(int level, boolean plugged) {
+        if (!plugged) {
+            endSession();
+            return;
+        }
+
+        final long now = System.currentTimeMillis();
+        if (mSessionPlugTime == 0) {
+            mSessionPlugTime = now;
+            mSessionStartLevel = level;
+            mPredictedUnplugTime = -1;
+            mRateLevel = level;
+            mRateTime = now;
+            mRateTotalMs = 0;
+            mRateTotalPct = 0;
+        } else if (level > mRateLevel) {
+            final long interval = now - mRateTime;
+            if (interval > 0 && interval <= MAX_RATE_INTERVAL_MS) {
+                mRateTotalMs += interval;
+                mRateTotalPct += level - mRateLevel;
+            }
+            mRateLevel = level;
+            mRateTime = now;
+        } else if (level < mRateLevel) {
+            mRateLevel = level;
+            mRateTime = now;
+        }
+        mSessionLevel = level;
+    }
+
+    private void endSession() {
+        if (mSessionPlugTime == 0) {
+            return;
+        }
+        mHistory.add(mSessionPlugTime, System.currentTimeMillis(),
+                mRateTotalPct > 0 ? (int) (mRateTotalMs / mRateTotalPct) : 0,
+                mSessionStartLevel, mSessionLevel);
+        mSessionPlugTime = 0;
     }
 
     private void onPowerStatus(boolean enable) {
         // Don't do anything if it is not enabled
-        if (!isEnabled()) {
+        if (!mEnabled) {
             return;
         }
 
@@ -369,33 +472,51 @@ public class ChargingControlController extends LineageHealthFeature {
     private ChargeTime getChargeTime() {
         // Get duration to target full time
         final long currentTime = System.currentTimeMillis();
-        Log.i(TAG, "Current time is " + msToString(mContext, currentTime));
         long targetTime = 0, startTime = currentTime;
-        int mode = getMode();
+        int mode = mMode;
 
         if (mode == MODE_AUTO) {
-            // Use alarm as the target time. Maybe someday we can use a model.
-            AlarmManager m = mContext.getSystemService(AlarmManager.class);
-            if (m == null) {
-                Log.e(TAG, "Failed to get alarm service!");
-                mChargingNotification.cancel();
-                return null;
+            // Use the earlier of the next alarm and the time the user usually unplugs
+            if (!mNextAlarmValid) {
+                AlarmManager m = mContext.getSystemService(AlarmManager.class);
+                if (m == null) {
+                    Log.e(TAG, "Failed to get alarm service!");
+                    mChargingNotification.cancel();
+                    return null;
+                }
+                AlarmManager.AlarmClockInfo alarmClockInfo = m.getNextAlarmClock();
+                mNextAlarmTime = alarmClockInfo != null ? alarmClockInfo.getTriggerTime() : 0;
+                mNextAlarmValid = true;
+            }
+            // Only keep a prediction made with the whole history
+            if (mSessionPlugTime != 0 && mPredictedUnplugTime == -1 && mHistory.isLoaded()) {
+                mPredictedUnplugTime = mHistory.predictUnplugTime(mSessionPlugTime, currentTime);
             }
-            AlarmManager.AlarmClockInfo alarmClockInfo = m.getNextAlarmClock();
-            if (alarmClockInfo == null) {
+            final long predicted = mPredictedUnplugTime > currentTime ? mPredictedUnplugTime : 0;
+            if (mNextAlarmTime == 0 && predicted == 0) {
                 // We didn't find an alarm. Clear waiting flags because we can't predict anyway
-                Log.w(TAG, "No alarm found, auto charging control has no effect");
+                Log.w(TAG, "No alarm or charging history found, "
+                        + "auto charging control has no effect");
                 mChargingNotification.cancel();
                 return null;
             }
-            targetTime = alarmClockInfo.getTriggerTime();
 
-            // Start time is 9 hours before the alarm
-            startTime = targetTime - DateUtils.HOUR_IN_MILLIS * 9;
+            if (predicted != 0 && (mNextAlarmTime == 0 || predicted < mNextAlarmTime)) {
+                targetTime = predicted;
+                // The user is expected to stay plugged in until then
+                startTime = mSessionPlugTime;
+            } else {
+                targetTime = mNextAlarmTime;
+                // Start time is 9 hours before the alarm, or earlier if charging
+                // to full takes longer than that at the learned rate
+                final long chargeDuration =
+                        (long) ((100 - mBatteryPct) * mHistory.getChargeMsPerPct());
+                startTime = targetTime - Math.max(DateUtils.HOUR_IN_MILLIS * 9, chargeDuration);
+            }
         } else if (mode == MODE_MANUAL) {
             // User manually controlled time
-            startTime = getTimeMillisFromSecondOfDay(getStartTime());
-            targetTime = getTimeMillisFromSecondOfDay(getTargetTime());
+            startTime = getTimeMillisFromSecondOfDay(mStartTime);
+            targetTime = getTimeMillisFromSecondOfDay(mTargetTime);
 
             if (startTime > targetTime) {
                 if (currentTime > targetTime) {
@@ -412,12 +533,15 @@ public class ChargingControlController extends LineageHealthFeature {
             return null;
         }
 
-        Log.i(TAG, "Got target time " + msToString(mContext, targetTime)
-                + ", start time " + msToString(mContext, startTime)
-                + ", current time " + msToString(mContext, currentTime));
-        Log.i(TAG, "Raw: " + targetTime + ", " + startTime + ", " + currentTime);
-
-        return new ChargeTime(startTime, targetTime);
+        final ChargeTime chargeTime = new ChargeTime(startTime, targetTime);
+        if (!chargeTime.equals(mLastChargeTime)) {
+            Log.i(TAG, "Got target time " + msToString(mContext, targetTime)
+                    + ", start time " + msToString(mContext, startTime)
+                    + ", current time " + msToString(mContext, currentTime));
+            Log.i(TAG, "Raw: " + targetTime + ", " + startTime + ", " + currentTime);
+            mLastChargeTime = chargeTime;
+        }
+        return chargeTime;
     }
 
     protected void updateChargeControl() {
@@ -425,14 +549,37 @@ public class ChargingControlController extends LineageHealthFeature {
             return;
         }
 
-        if (!isEnabled() || mIsControlCancelledOnce || !mIsPowerConnected) {
+        if (!mEnabled || mIsControlCancelledOnce || !mIsPowerConnected) {
             mCurrentProvider.disable();
             mChargingNotification.cancel();
+            cancelNextUpdate();
             return;
         }
 
-        int mode = getMode();
-        int limit = getLimit();
+        int mode = mMode;
+        int limit = mLimitSetting;
+
+        if (mode == MODE_AUTO) {
+            if (mAlarmBroadcastReceiver == null) {
+                IntentFilter alarmChangedFilter = new IntentFilter(
+                        android.app.AlarmManager.ACTION_NEXT_ALARM_CLOCK_CHANGED);
+                mAlarmBroadcastReceiver = new BroadcastReceiver() {
+                    @Override
+                    public void onReceive(Context context, Intent intent) {
+                        Log.i(TAG, "Alarm changed, update charge times");
+                        mNextAlarmValid = false;
+                        updateChargeControl();
+                    }
+                };
+                mContext.registerReceiver(mAlarmBroadcastReceiver, alarmChangedFilter);
+                mNextAlarmValid = false;
+            }
+        } else {
+            if (mAlarmBroadcastReceiver != null) {
+                mContext.unregisterReceiver(mAlarmBroadcastReceiver);
+                mAlarmBroadcastReceiver = null;
+            }
+        }
 
         mCurrentProvider.enable();
 
@@ -442,38 +589,65 @@ public class ChargingControlController extends LineageHealthFeature {
             } else {
                 mChargingNotification.cancel();
             }
+            cancelNextUpdate();
         } else {
             ChargeTime chargeTime = getChargeTime();
             if (chargeTime != null) {
-                if (mCurrentProvider.update(mBatteryPct, chargeTime.getStartTime(),
+                if (mCurrentProvider.update(mBatteryPct, mLastPlugged > 0,
+                        chargeTime.getStartTime(),
                         chargeTime.getTargetTime(), mode)) {
                     mChargingNotification.post(chargeTime.getTargetTime(),
                             mBatteryPct == 100);
                 } else {
                     mChargingNotification.cancel();
                 }
+                scheduleNextUpdate(chargeTime);
+            } else {
+                cancelNextUpdate();
             }
         }
+    }
 
-        if (mode == MODE_AUTO) {
-            if (mAlarmBroadcastReceiver == null) {
-                IntentFilter alarmChangedFilter = new IntentFilter(
-                        android.app.AlarmManager.ACTION_NEXT_ALARM_CLOCK_CHANGED);
-                mAlarmBroadcastReceiver = new BroadcastReceiver() {
-                    @Override
-                    public void onReceive(Context context, Intent intent) {
-                        Log.i(TAG, "Alarm changed, update charge times");
-                        updateChargeControl();
-                    }
-                };
-                mContext.registerReceiver(mAlarmBroadcastReceiver, alarmChangedFilter);
-            }
-        } else {
-            if (mAlarmBroadcastReceiver != null) {
-                mContext.unregisterReceiver(mAlarmBroadcastReceiver);
-                mAlarmBroadcastReceiver = null;
+    /**
+     * Wake up exactly at the next time the decision of a time based mode may change:
+     * the start time, the target time or when the provider wants to resume charging.
+     */
+    private void scheduleNextUpdate(ChargeTime chargeTime) {
+        final long currentTime = System.currentTimeMillis();
+        long next = Long.MAX_VALUE;
+        for (long time : new long[] { chargeTime.getStartTime(), chargeTime.getTargetTime(),
+                mCurrentProvider.getNextUpdateTime() }) {
+            if (time > currentTime && time < next) {
+                next = time;
             }
         }
+        if (next == Long.MAX_VALUE) {
+            cancelNextUpdate();
+            return;
+        }
+        if (next == mNextUpdateTime) {
+            return;
+        }
+
+        AlarmManager m = mContext.getSystemService(AlarmManager.class);
+        if (m == null) {
+            Log.e(TAG, "Failed to get alarm service!");
+            return;
+        }
+        m.setExact(AlarmManager.RTC_WAKEUP, next, TAG, mNextUpdateListener, mHandler);
+        mNextUpdateTime = next;
+        Log.i(TAG, "Next update scheduled at " + msToString(mContext, next));
+    }
+
+    private void cancelNextUpdate() {
+        if (mNextUpdateTime == 0) {
+            return;
+        }
+        AlarmManager m = mContext.getSystemService(AlarmManager.class);
+        if (m != null) {
+            m.cancel(mNextUpdateListener);
+        }
+        mNextUpdateTime = 0;
     }
 
     /**
@@ -492,12 +666,13 @@ public class ChargingControlController extends LineageHealthFeature {
     }
 
     private void handleSettingChange() {
-        int mode = getMode();
+        loadSettings();
 
-        if (!isProvideSupportCCMode(mode)) {
-            Log.e(TAG, "Current provider does not support mode: " + mode
+        if (!isProvideSupportCCMode(mMode)) {
+            Log.e(TAG, "Current provider does not support mode: " + mMode
                     + ", setting to default mode");
             setMode(mDefaultMode);
+            mMode = mDefaultMode;
         }
 
         // Reset internal states
@@ -528,10 +703,18 @@ public class ChargingControlController extends LineageHealthFeature {
         pw.println("  mIsNotificationPosted: " + mChargingNotification.isPosted());
         pw.println("  mIsDoneNotification: " + mChargingNotification.isDoneNotification());
         pw.println("  mIsControlCancelledOnce: " + mIsControlCancelledOnce);
+        pw.println("  mProcessedBroadcasts: " + mProcessedBroadcasts);
+        pw.println("  mSkippedBroadcasts: " + mSkippedBroadcasts);
+        pw.println("  mNextUpdateTime: " + (mNextUpdateTime == 0 ? "none"
+                : msToString(mContext, mNextUpdateTime)));
         pw.println();
         if (mCurrentProvider != null) {
             mCurrentProvider.dump(pw);
         }
+        if (mHistory != null) {
+            pw.println();
+            mHistory.dump(pw);
+        }
     }
 
     /* Battery Broadcast Receiver */
@@ -540,11 +723,24 @@ public class ChargingControlController extends LineageHealthFeature {
         public void onReceive(Context context, Intent intent) {
             int level = intent.getIntExtra(BatteryManager.EXTRA_LEVEL, -1);
             int scale = intent.getIntExtra(BatteryManager.EXTRA_SCALE, -1);
+            int plugged = intent.getIntExtra(BatteryManager.EXTRA_PLUGGED, 0);
             if (level == -1 || scale == -1) {
                 return;
             }
 
+            // Most of these broadcasts are for voltage or temperature changes. Time based
+            // transitions don't depend on them, they are handled by scheduleNextUpdate().
+            if (level == mLastLevel && scale == mLastScale && plugged == mLastPlugged) {
+                mSkippedBroadcasts++;
+                return;
+            }
+            mLastLevel = level;
+            mLastScale = scale;
+            mLastPlugged = plugged;
+            mProcessedBroadcasts++;
+
             mBatteryPct = level * 100 / (float) scale;
+            trackSession((int) mBatteryPct, plugged != 0);
             updateChargeControl();
         }
     }
@@ -566,5 +762,19 @@ public class ChargingControlController extends LineageHealthFeature {
         public long getTargetTime() {
             return mTargetTime;
         }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof ChargeTime)) {
+                return false;
+            }
+            final ChargeTime other = (ChargeTime) o;
+            return mStartTime == other.mStartTime && mTargetTime == other.mTargetTime;
+        }
+
+        @Override
+        public int hashCode() {
+            return Long.hashCode(mStartTime) * 31 + Long.hashCode(mTargetTime);
+        }
     }
 }
@@ -0,0 +1,263 @@
+/*
+ * SPDX-FileCopyrightText: 2024 The LineageOS Project
+ * SPDX-License-Identifier: Apache-2.0
+ */
+
+package org.lineageos.platform.internal.health;
+
+import static org.lineageos.platform.internal.health.Util.msToString;
+
+import android.content.Context;
+import android.os.Handler;
+import android.text.format.DateUtils;
+import android.util.AtomicFile;
+import android.util.Log;
+
+import com.android.internal.os.BackgroundThread;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.Arrays;
+import java.util.Calendar;
+
+/**
+ * The last charging sessions of the device, kept in a fixed size ring file,
+ * used to predict when the device will be unplugged and how fast it charges.
+ *
+ * File layout: a header of (version, next index, count) followed by
+ * count records of (plug time, unplug time, ms per percent, start level,
+ * end level).
+ *
+ * The file is read and written on the background thread. Until it has been
+ * read the history is empty.
+ */
+public class ChargingHistory {
+    private static final String TAG = "LineageHealth";
+
+    static final int MAX_SESSIONS = 64;
+
+    private static final int VERSION = 1;
+
+    // Sessions shorter than this are not worth learning from
+    static final long MIN_SESSION_MS = 15 * DateUtils.MINUTE_IN_MILLIS;
+
+    // Only sessions at least this long are considered for prediction, e.g. overnight
+    private static final long MIN_PREDICTION_SESSION_MS = 3 * DateUtils.HOUR_IN_MILLIS;
+
+    // Sessions plugged in within this many minutes of the time of day are similar
+    private static final int SIMILAR_PLUG_MINUTES = 2 * 60;
+
+    // Number of similar sessions needed to make a prediction
+    private static final int MIN_SIMILAR_SESSIONS = 4;
+
+    // Percentile of the similar session durations used, to be on the safe side
+    private static final int DURATION_PERCENTILE = 25;
+
+    private final Context mContext;
+    private final AtomicFile mFile;
+    private final Handler mHandler = BackgroundThread.getHandler();
+
+    private final long[] mPlugTimes = new long[MAX_SESSIONS];
+    private final long[] mUnplugTimes = new long[MAX_SESSIONS];
+    private final int[] mMsPerPct = new int[MAX_SESSIONS];
+    private final byte[] mStartLevels = new byte[MAX_SESSIONS];
+    private final byte[] mEndLevels = new byte[MAX_SESSIONS];
+    private int mNext;
+    private int mCount;
+    private boolean mLoaded;
+
+    public ChargingHistory(Context context, File file) {
+        mContext = context;
+        mFile = new AtomicFile(file);
+        mHandler.post(this::load);
+    }
+
+    private synchronized void load() {
+        try {
+            readFile();
+        } finally {
+            mLoaded = true;
+        }
+    }
+
+    private void readFile() {
+        if (!mFile.exists()) {
+            return;
+        }
+        try (DataInputStream in = new DataInputStream(
+                new ByteArrayInputStream(mFile.readFully()))) {
+            if (in.readInt() != VERSION) {
+                Log.w(TAG, "Ignoring charging history with unknown version");
+                return;
+            }
+            final int next = in.readInt();
+            final int count = in.readInt();
+            if (next < 0 || next >= MAX_SESSIONS || count < 0 || count > MAX_SESSIONS) {
+                Log.w(TAG, "Ignoring corrupt charging history");
+                return;
+            }
+            for (int i = 0; i < count; i++) {
+                mPlugTimes[i] = in.readLong();
+                mUnplugTimes[i] = in.readLong();
+                mMsPerPct[i] = in.readInt();
+                mStartLevels[i] = in.readByte();
+                mEndLevels[i] = in.readByte();
+                if (mUnplugTimes[i] - mPlugTimes[i] < MIN_SESSION_MS || mMsPerPct[i] < 0
+                        || !isValidLevel(mStartLevels[i]) || !isValidLevel(mEndLevels[i])) {
+                    Log.w(TAG, "Ignoring corrupt charging history");
+                    return;
+                }
+            }
+            mNext = next;
+            mCount = count;
+        } catch (IOException e) {
+            Log.e(TAG, "Failed to read charging history", e);
+        }
+    }
+
+    private static boolean isValidLevel(int level) {
+        return level >= 0 && level <= 100;
+    }
+
+    private void write() {
+        final byte[] data;
+        synchronized (this) {
+            final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            try (DataOutputStream out = new DataOutputStream(bytes)) {
+                out.writeInt(VERSION);
+                out.writeInt(mNext);
+                out.writeInt(mCount);
+                for (int i = 0; i < mCount; i++) {
+                    out.writeLong(mPlugTimes[i]);
+                    out.writeLong(mUnplugTimes[i]);
+                    out.writeInt(mMsPerPct[i]);
+                    out.writeByte(mStartLevels[i]);
+                    out.writeByte(mEndLevels[i]);
+                }
+            } catch (IOException e) {
+                // Can't happen when writing to memory
+                throw new IllegalStateException(e);
+            }
+            data = bytes.toByteArray();
+        }
+
+        FileOutputStream out = null;
+        try {
+            out = mFile.startWrite();
+            out.write(data);
+            mFile.finishWrite(out);
+        } catch (IOException e) {
+            Log.e(TAG, "Failed to write charging history", e);
+            mFile.failWrite(out);
+        }
+    }
+
+    /**
+     * Record a finished charging session, overwriting the oldest one if the history is full.
+     * The session is added and the file written on the background thread.
+     *
+     * @param msPerPct observed charge rate in milliseconds per percent, or 0 if unknown
+     */
+    public void add(long plugTime, long unplugTime, int msPerPct, int startLevel,
+            int endLevel) {
+        if (unplugTime - plugTime < MIN_SESSION_MS) {
+            return;
+        }
+
+        mHandler.post(() -> {
+            synchronized (this) {
+                final int index = mNext;
+                mPlugTimes[index] = plugTime;
+                mUnplugTimes[index] = unplugTime;
+                mMsPerPct[index] = msPerPct;
+                mStartLevels[index] = (byte) startLevel;
+                mEndLevels[index] = (byte) endLevel;
+                mNext = (index + 1) % MAX_SESSIONS;
+                mCount = Math.min(mCount + 1, MAX_SESSIONS);
+            }
+            write();
+        });
+    }
+
+    /**
+     * @return whether the file has been read, before that the history is empty
+     */
+    public synchronized boolean isLoaded() {
+        return mLoaded;
+    }
+
+    /**
+     * Predict when a session plugged in at {@code plugTime} will be unplugged,
+     * from the sessions which were plugged in around the same time of day.
+     *
+     * @return the predicted unplug time, or 0 if there isn't enough history
+     *         or the prediction is already in the past
+     */
+    public synchronized long predictUnplugTime(long plugTime, long now) {
+        final int plugMinute = getMinuteOfDay(plugTime);
+        final long[] durations = new long[mCount];
+        int similar = 0;
+        for (int i = 0; i < mCount; i++) {
+            final long duration = mUnplugTimes[i] - mPlugTimes[i];
+            if (duration < MIN_PREDICTION_SESSION_MS) {
+                continue;
+            }
+            int diff = Math.abs(getMinuteOfDay(mPlugTimes[i]) - plugMinute);
+            diff = Math.min(diff, 24 * 60 - diff);
+            if (diff <= SIMILAR_PLUG_MINUTES) {
+                durations[similar++] = duration;
+            }
+        }
+        if (similar < MIN_SIMILAR_SESSIONS) {
+            return 0;
+        }
+
+        Arrays.sort(durations, 0, similar);
+        final long predicted = plugTime + durations[(similar - 1) * DURATION_PERCENTILE / 100];
+        return predicted > now ? predicted : 0;
+    }
+
+    /**
+     * @return the median observed charge rate in milliseconds per percent, or 0 if unknown
+     */
+    public synchronized int getChargeMsPerPct() {
+        final int[] rates = new int[mCount];
+        int known = 0;
+        for (int i = 0; i < mCount; i++) {
+            if (mMsPerPct[i] > 0) {
+                rates[known++] = mMsPerPct[i];
+            }
+        }
+        if (known == 0) {
+            return 0;
+        }
+        Arrays.sort(rates, 0, known);
+        return rates[known / 2];
+    }
+
+    private static int getMinuteOfDay(long time) {
+        final Calendar calendar = Calendar.getInstance();
+        calendar.setTimeInMillis(time);
+        return calendar.get(Calendar.HOUR_OF_DAY) * 60 + calendar.get(Calendar.MINUTE);
+    }
+
+    public synchronized void dump(PrintWriter pw) {
+        pw.println("ChargingHistory:");
+        pw.println("  Sessions: " + mCount);
+        pw.println("  ChargeMsPerPct: " + getChargeMsPerPct());
+        // newest first
+        for (int i = 0; i < Math.min(mCount, 7); i++) {
+            final int index = (mNext - 1 - i + MAX_SESSIONS) % MAX_SESSIONS;
+            pw.println("  " + msToString(mContext, mPlugTimes[index]) + " ("
+                    + mStartLevels[index] + "%) -> "
+                    + msToString(mContext, mUnplugTimes[index]) + " ("
+                    + mEndLevels[index] + "%), " + mMsPerPct[index] + " ms/%");
+        }
+    }
+}
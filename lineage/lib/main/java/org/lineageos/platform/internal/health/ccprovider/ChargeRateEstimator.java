@@ -0,0 +1,120 @@
+/*
+ * SPDX-FileCopyrightText: 2024 The LineageOS Project
+ * SPDX-License-Identifier: Apache-2.0
+ */
+
+package org.lineageos.platform.internal.health.ccprovider;
+
+import static org.lineageos.platform.internal.health.Util.msToHMSString;
+
+import android.os.SystemClock;
+import android.text.format.DateUtils;
+import android.util.MathUtils;
+
+import java.io.PrintWriter;
+
+/**
+ * Estimates the time until the battery is full from the rate at which the
+ * battery level rose over the last samples.
+ *
+ * The estimate is periodically scaled to match the platform estimate from
+ * BatteryUsageStats, which is too expensive to query on every battery change.
+ */
+final class ChargeRateEstimator {
+    // Number of level increments needed before the learned rate is used
+    private static final int MIN_SAMPLES = 3;
+
+    // Weight of the newest sample in the moving average
+    private static final double SMOOTHING = 0.3;
+
+    // Longer gaps between samples are not representative of the charge rate
+    private static final long MAX_SAMPLE_INTERVAL_MS = 30 * DateUtils.MINUTE_IN_MILLIS;
+
+    // How often the estimate is compared against BatteryUsageStats
+    private static final long CROSS_CHECK_INTERVAL_MS = 30 * DateUtils.MINUTE_IN_MILLIS;
+
+    // Bounds of the correction applied after a cross check
+    private static final float MIN_CORRECTION = 0.5f;
+    private static final float MAX_CORRECTION = 4f;
+
+    private float mLastPct = -1;
+    private long mLastTime;
+
+    private double mMsPerPct;
+    private int mSamples;
+
+    private float mCorrection = 1f;
+    private long mLastCrossCheckTime;
+    private long mLastPlatformEstimate = -1;
+
+    /**
+     * Record the battery level while the battery is charging.
+     */
+    void addSample(float batteryPct) {
+        final long now = SystemClock.elapsedRealtime();
+        if (mLastPct < 0 || batteryPct < mLastPct
+                || now - mLastTime > MAX_SAMPLE_INTERVAL_MS) {
+            mLastPct = batteryPct;
+            mLastTime = now;
+            return;
+        }
+        if (batteryPct == mLastPct) {
+            return;
+        }
+
+        final double msPerPct = (now - mLastTime) / (double) (batteryPct - mLastPct);
+        mMsPerPct = mSamples == 0 ? msPerPct : SMOOTHING * msPerPct + (1 - SMOOTHING) * mMsPerPct;
+        mSamples++;
+        mLastPct = batteryPct;
+        mLastTime = now;
+    }
+
+    /**
+     * Forget the last sample, e.g. because charging was paused.
+     */
+    void clearLastSample() {
+        mLastPct = -1;
+    }
+
+    /**
+     * @return the estimated time to full in milliseconds, or -1 if unknown
+     */
+    long getTimeToFull(float batteryPct) {
+        if (mSamples < MIN_SAMPLES) {
+            return -1;
+        }
+        return (long) (Math.max(0, 100 - batteryPct) * mMsPerPct * mCorrection);
+    }
+
+    boolean isCrossCheckDue() {
+        return mLastCrossCheckTime == 0
+                || SystemClock.elapsedRealtime() - mLastCrossCheckTime >= CROSS_CHECK_INTERVAL_MS;
+    }
+
+    /**
+     * Scale the learned estimate to match the platform estimate.
+     *
+     * @param platformEstimate time to full from BatteryUsageStats, or -1 if unknown
+     */
+    void crossCheck(long platformEstimate, float batteryPct) {
+        mLastCrossCheckTime = SystemClock.elapsedRealtime();
+        mLastPlatformEstimate = platformEstimate;
+        if (platformEstimate <= 0 || mSamples < MIN_SAMPLES || batteryPct >= 100) {
+            return;
+        }
+        final double learned = (100 - batteryPct) * mMsPerPct;
+        if (learned > 0) {
+            mCorrection = MathUtils.constrain((float) (platformEstimate / learned),
+                    MIN_CORRECTION, MAX_CORRECTION);
+        }
+    }
+
+    void dump(PrintWriter pw) {
+        pw.println("  ChargeRateEstimator:");
+        pw.println("    mSamples: " + mSamples);
+        pw.println("    mMsPerPct: " + (long) mMsPerPct);
+        pw.println("    mCorrection: " + mCorrection);
+        pw.println("    mLastPlatformEstimate: " + (mLastPlatformEstimate < 0 ? "unknown"
+                : msToHMSString(mLastPlatformEstimate)));
+    }
+}
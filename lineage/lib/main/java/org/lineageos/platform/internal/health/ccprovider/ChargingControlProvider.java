@@ -33,11 +33,12 @@ public abstract class ChargingControlProvider {
         return onBatteryChanged(batteryPct, targetPct);
     }
 
-    public final boolean update(float batteryPct, long startTime, long targetTime, int configMode) {
+    public final boolean update(float batteryPct, boolean plugged, long startTime,
+            long targetTime, int configMode) {
         if (!isEnabled) {
             return false;
         }
-        return onBatteryChanged(batteryPct, startTime, targetTime, configMode);
+        return onBatteryChanged(batteryPct, plugged, startTime, targetTime, configMode);
     }
 
     public final void reset() {
@@ -95,6 +96,7 @@ public abstract class ChargingControlProvider {
      * {@link android.content.Intent#ACTION_BATTERY_CHANGED} is received.
      *
      * @param batteryPct Current battery percentage
+     * @param plugged    Whether the device is plugged in to a power source
      * @param startTime  The time when the charging control should start
      * @param targetTime The expected time when the battery should be full
      * @param configMode The current charging control mode, either
@@ -102,11 +104,21 @@ public abstract class ChargingControlProvider {
      *                   {@link lineageos.health.HealthInterface#MODE_MANUAL}
      * @return Whether a notification should be posted
      */
-    protected boolean onBatteryChanged(float batteryPct, long startTime, long targetTime,
-            int configMode) {
+    protected boolean onBatteryChanged(float batteryPct, boolean plugged, long startTime,
+            long targetTime, int configMode) {
         throw new RuntimeException("Unsupported operation");
     }
 
+    /**
+     * Time at which the provider needs to be updated again, regardless of
+     * battery changes, e.g. to resume charging.
+     *
+     * @return time in milliseconds since epoch, or 0 if there is none
+     */
+    public long getNextUpdateTime() {
+        return 0;
+    }
+
     /**
      * Called when the provider is enabled
      */
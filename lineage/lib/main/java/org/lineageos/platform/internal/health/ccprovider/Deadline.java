@@ -24,8 +24,8 @@ public class Deadline extends ChargingControlProvider {
     }
 
     @Override
-    protected boolean onBatteryChanged(float batteryPct, long startTime, long targetTime,
-            int configMode) {
+    protected boolean onBatteryChanged(float batteryPct, boolean plugged, long startTime,
+            long targetTime, int configMode) {
         if (targetTime == mSavedTargetTime) {
             return true;
         }
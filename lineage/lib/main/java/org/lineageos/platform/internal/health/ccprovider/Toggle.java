@@ -13,9 +13,6 @@ import static org.lineageos.platform.internal.health.Util.msToHMSString;
 import static org.lineageos.platform.internal.health.Util.msToString;
 
 import android.content.Context;
-import android.content.Intent;
-import android.content.IntentFilter;
-import android.os.BatteryManager;
 import android.os.BatteryStatsManager;
 import android.os.BatteryUsageStats;
 import android.util.Log;
@@ -37,6 +34,7 @@ public class Toggle extends ChargingControlProvider {
     private boolean mIsLimitSet;
     private long mSavedTargetTime;
     private long mEstimatedFullTime;
+    private final ChargeRateEstimator mEstimator = new ChargeRateEstimator();
     private chgCtrlStage mStage = chgCtrlStage.STAGE_NONE;
 
     private enum chgCtrlStage {
@@ -117,14 +115,11 @@ public class Toggle extends ChargingControlProvider {
         return false;
     }
 
-    private chgCtrlStage getNextStage(float batteryPct, long startTime, long targetTime) {
+    private chgCtrlStage getNextStage(float batteryPct, boolean plugged, long startTime,
+            long targetTime) {
         final long currentTime = System.currentTimeMillis();
         chgCtrlStage stage = mStage;
 
-        IntentFilter ifilter = new IntentFilter(Intent.ACTION_BATTERY_CHANGED);
-        Intent batteryStatus = mContext.registerReceiver(null, ifilter);
-        boolean plugged = batteryStatus.getIntExtra(BatteryManager.EXTRA_PLUGGED, -1) != 0;
-
         if (startTime > currentTime && stage != chgCtrlStage.STAGE_CONTINUE) {
             // Not yet entering user configured time frame
             return chgCtrlStage.STAGE_NONE;
@@ -137,22 +132,23 @@ public class Toggle extends ChargingControlProvider {
             stage = chgCtrlStage.STAGE_INITIAL;
         }
 
-        final BatteryUsageStats batteryUsageStats = Objects.requireNonNull(
-                mContext.getSystemService(
-                        BatteryStatsManager.class)).getBatteryUsageStats();
-        long remaining = batteryUsageStats.getChargeTimeRemainingMs();
-        remaining += mChargingTimeMargin;
-        Log.i(TAG, "Current estimated time to full: " + msToHMSString(remaining));
-
         long deltaTime = targetTime - currentTime;
-        Log.i(TAG, "Current time to target: " + msToHMSString(deltaTime));
 
         switch (stage) {
             case STAGE_NONE, STAGE_INITIAL -> {
-                if (!plugged || batteryPct < CHARGE_CTRL_MIN_LEVEL || remaining == -1) {
+                if (!plugged || batteryPct < CHARGE_CTRL_MIN_LEVEL) {
                     // NONE/INITIAL -> INITIAL: If battery level < 80%
                     return chgCtrlStage.STAGE_INITIAL;
-                } else if (deltaTime > remaining) {
+                }
+                long remaining = getTimeToFull(batteryPct);
+                if (remaining < 0) {
+                    // NONE/INITIAL -> INITIAL: We can't tell how long charging takes
+                    return chgCtrlStage.STAGE_INITIAL;
+                }
+                remaining += mChargingTimeMargin;
+                Log.i(TAG, "Current estimated time to full: " + msToHMSString(remaining)
+                        + ", time to target: " + msToHMSString(deltaTime));
+                if (deltaTime > remaining) {
                     // NONE/INITIAL -> WAITING: battery level >= 80% && Have enough time waiting
                     mEstimatedFullTime = remaining;
                     return chgCtrlStage.STAGE_WAITING;
@@ -180,18 +176,53 @@ public class Toggle extends ChargingControlProvider {
         return chgCtrlStage.STAGE_NONE;
     }
 
+    /**
+     * @return the estimated time to full in milliseconds, or -1 if unknown
+     */
+    private long getTimeToFull(float batteryPct) {
+        long remaining = mEstimator.getTimeToFull(batteryPct);
+        if (remaining < 0 || mEstimator.isCrossCheckDue()) {
+            final BatteryUsageStats batteryUsageStats = Objects.requireNonNull(
+                    mContext.getSystemService(
+                            BatteryStatsManager.class)).getBatteryUsageStats();
+            final long platformRemaining = batteryUsageStats.getChargeTimeRemainingMs();
+            mEstimator.crossCheck(platformRemaining, batteryPct);
+            remaining = remaining < 0 ? platformRemaining
+                    : mEstimator.getTimeToFull(batteryPct);
+        }
+        return remaining;
+    }
+
     @Override
-    protected boolean onBatteryChanged(float batteryPct, long startTime, long targetTime,
-            int configMode) {
+    public long getNextUpdateTime() {
+        if (isEnabled() && mStage == chgCtrlStage.STAGE_WAITING) {
+            // WAITING -> CONTINUE
+            return mSavedTargetTime - mEstimatedFullTime;
+        }
+        return 0;
+    }
+
+    @Override
+    protected boolean onBatteryChanged(float batteryPct, boolean plugged, long startTime,
+            long targetTime, int configMode) {
         if (configMode != MODE_AUTO && configMode != MODE_MANUAL) {
             Log.e(TAG,
                     "Possible bug: onBatteryChanged called with unsupported mode: " + configMode);
             return false;
         }
 
+        // Only learn the charge rate while actually charging
+        if (plugged && mStage != chgCtrlStage.STAGE_WAITING) {
+            mEstimator.addSample(batteryPct);
+        } else {
+            mEstimator.clearLastSample();
+        }
+
         chgCtrlStage prevStage = mStage;
-        mStage = getNextStage(batteryPct, startTime, targetTime);
-        Log.i(TAG, "State change: " + prevStage + " -> " + mStage);
+        mStage = getNextStage(batteryPct, plugged, startTime, targetTime);
+        if (prevStage != mStage) {
+            Log.i(TAG, "State change: " + prevStage + " -> " + mStage);
+        }
 
         return onStage(mStage);
     }
@@ -231,6 +262,7 @@ public class Toggle extends ChargingControlProvider {
         } catch (Exception e) {
             Log.e(TAG, "Failed to set charging enabled", e);
         }
+        mEstimator.clearLastSample();
     }
 
     @Override
@@ -246,6 +278,7 @@ public class Toggle extends ChargingControlProvider {
         pw.println("  mEstimatedFullTime: " + msToHMSString(mEstimatedFullTime));
         pw.println("  mStage: " + mStage);
         pw.println("  mChargeLimitMargin: " + mChargingLimitMargin);
+        mEstimator.dump(pw);
     }
 
     private boolean shouldStopCharging(float currentPct, int targetPct) {
@@ -10,9 +10,11 @@ import android.hidl.base.V1_0.IBase;
 import android.os.IBinder;
 import android.os.RemoteException;
 import android.os.ServiceManager;
+import android.os.SystemClock;
 import android.util.ArrayMap;
 import android.util.Log;
 import android.util.Range;
+import android.util.SparseLongArray;
 
 import com.android.internal.annotations.VisibleForTesting;
 import com.android.internal.util.ArrayUtils;
@@ -30,12 +32,17 @@ import vendor.lineage.livedisplay.V2_0.IReadingEnhancement;
 import vendor.lineage.livedisplay.V2_0.ISunlightEnhancement;
 import vendor.lineage.livedisplay.V2_1.IAntiFlicker;
 
-import java.lang.reflect.Field;
 import java.util.ArrayList;
 import java.util.Arrays;
-import java.util.HashMap;
+import java.util.Collections;
 import java.util.List;
 import java.util.NoSuchElementException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReferenceArray;
 
 /**
  * Manages access to LineageOS hardware extensions
@@ -155,19 +162,76 @@ public final class LineageHardwareManager {
     @VisibleForTesting
     public static final int FEATURE_ANTI_FLICKER = 0x200000;
 
-    private static final List<Integer> BOOLEAN_FEATURES = Arrays.asList(
+    private static final int BOOLEAN_FEATURES =
+        FEATURE_ADAPTIVE_BACKLIGHT |
+        FEATURE_ANTI_FLICKER |
+        FEATURE_AUTO_CONTRAST |
+        FEATURE_COLOR_ENHANCEMENT |
+        FEATURE_HIGH_TOUCH_POLLING_RATE |
+        FEATURE_HIGH_TOUCH_SENSITIVITY |
+        FEATURE_KEY_DISABLE |
+        FEATURE_KEY_SWAP |
+        FEATURE_SUNLIGHT_ENHANCEMENT |
+        FEATURE_TOUCH_HOVERING |
+        FEATURE_READING_ENHANCEMENT;
+
+    // Name to feature table for isSupported(String), keep in sync with the FEATURE_* fields
+    private static final ArrayMap<String, Integer> FEATURE_NAMES = new ArrayMap<>();
+    static {
+        FEATURE_NAMES.put("FEATURE_ADAPTIVE_BACKLIGHT", FEATURE_ADAPTIVE_BACKLIGHT);
+        FEATURE_NAMES.put("FEATURE_COLOR_ENHANCEMENT", FEATURE_COLOR_ENHANCEMENT);
+        FEATURE_NAMES.put("FEATURE_DISPLAY_COLOR_CALIBRATION", FEATURE_DISPLAY_COLOR_CALIBRATION);
+        FEATURE_NAMES.put("FEATURE_HIGH_TOUCH_POLLING_RATE", FEATURE_HIGH_TOUCH_POLLING_RATE);
+        FEATURE_NAMES.put("FEATURE_HIGH_TOUCH_SENSITIVITY", FEATURE_HIGH_TOUCH_SENSITIVITY);
+        FEATURE_NAMES.put("FEATURE_KEY_DISABLE", FEATURE_KEY_DISABLE);
+        FEATURE_NAMES.put("FEATURE_KEY_SWAP", FEATURE_KEY_SWAP);
+        FEATURE_NAMES.put("FEATURE_SUNLIGHT_ENHANCEMENT", FEATURE_SUNLIGHT_ENHANCEMENT);
+        FEATURE_NAMES.put("FEATURE_VIBRATOR", FEATURE_VIBRATOR);
+        FEATURE_NAMES.put("FEATURE_TOUCH_HOVERING", FEATURE_TOUCH_HOVERING);
+        FEATURE_NAMES.put("FEATURE_AUTO_CONTRAST", FEATURE_AUTO_CONTRAST);
+        FEATURE_NAMES.put("FEATURE_DISPLAY_MODES", FEATURE_DISPLAY_MODES);
+        FEATURE_NAMES.put("FEATURE_READING_ENHANCEMENT", FEATURE_READING_ENHANCEMENT);
+        FEATURE_NAMES.put("FEATURE_COLOR_BALANCE", FEATURE_COLOR_BALANCE);
+        FEATURE_NAMES.put("FEATURE_PICTURE_ADJUSTMENT", FEATURE_PICTURE_ADJUSTMENT);
+        FEATURE_NAMES.put("FEATURE_TOUCHSCREEN_GESTURES", FEATURE_TOUCHSCREEN_GESTURES);
+        FEATURE_NAMES.put("FEATURE_ANTI_FLICKER", FEATURE_ANTI_FLICKER);
+    }
+
+    // Features which may be backed by an AIDL hal
+    private static final int[] AIDL_FEATURES = {
+        FEATURE_HIGH_TOUCH_POLLING_RATE,
+        FEATURE_HIGH_TOUCH_SENSITIVITY,
+        FEATURE_KEY_DISABLE,
+        FEATURE_KEY_SWAP,
+        FEATURE_TOUCH_HOVERING,
+        FEATURE_TOUCHSCREEN_GESTURES
+    };
+
+    // Features which may be backed by a HIDL hal
+    private static final int[] HIDL_FEATURES = {
         FEATURE_ADAPTIVE_BACKLIGHT,
         FEATURE_ANTI_FLICKER,
         FEATURE_AUTO_CONTRAST,
+        FEATURE_COLOR_BALANCE,
         FEATURE_COLOR_ENHANCEMENT,
+        FEATURE_DISPLAY_COLOR_CALIBRATION,
+        FEATURE_DISPLAY_MODES,
+        FEATURE_PICTURE_ADJUSTMENT,
+        FEATURE_READING_ENHANCEMENT,
+        FEATURE_SUNLIGHT_ENHANCEMENT,
         FEATURE_HIGH_TOUCH_POLLING_RATE,
         FEATURE_HIGH_TOUCH_SENSITIVITY,
         FEATURE_KEY_DISABLE,
         FEATURE_KEY_SWAP,
-        FEATURE_SUNLIGHT_ENHANCEMENT,
         FEATURE_TOUCH_HOVERING,
-        FEATURE_READING_ENHANCEMENT
-    );
+        FEATURE_TOUCHSCREEN_GESTURES
+    };
+
+    // How long isSupported() waits for a feature to be discovered before probing on its own
+    private static final long DISCOVERY_TIMEOUT_MS = 5000;
+
+    // Number of hals probed at once, most lookups return immediately
+    private static final int DISCOVERY_THREADS = 4;
 
     private static ILineageHardwareService sService;
     private static LineageHardwareManager sLineageHardwareManagerInstance;
@@ -177,10 +241,31 @@ public final class LineageHardwareManager {
     private final ArrayMap<String, String> mDisplayModeMappings = new ArrayMap<String, String>();
     private final boolean mFilterDisplayModes;
 
+    // Hal handles, indexed by the bit number of the feature. A feature is only
+    // looked up in these once its bit is set in mResolvedAIDL/mResolvedHIDL.
+    private final Object mHalLock = new Object();
     // AIDL hals
-    private HashMap<Integer, IBinder> mAIDLMap = new HashMap<Integer, IBinder>();
+    private final AtomicReferenceArray<IBinder> mAIDLHals = new AtomicReferenceArray<>(32);
+    private volatile int mResolvedAIDL;
     // HIDL hals
-    private HashMap<Integer, IBase> mHIDLMap = new HashMap<Integer, IBase>();
+    private final AtomicReferenceArray<IBase> mHIDLHals = new AtomicReferenceArray<>(32);
+    private volatile int mResolvedHIDL;
+
+    // Background hal discovery
+    private final CountDownLatch mDiscoveryLatch = new CountDownLatch(1);
+    private volatile int mDiscoveredFeatures = -1;
+    // Features still being probed by discovery, guarded by mHalLock
+    private int mProbingAIDL;
+    private int mProbingHIDL;
+    private final SparseLongArray mAIDLDiscoveryTimes = new SparseLongArray();
+    private final SparseLongArray mHIDLDiscoveryTimes = new SparseLongArray();
+
+    // Static display capabilities, read from the hals once
+    private static final int DISPLAY_CAPABILITY_FEATURES = FEATURE_COLOR_BALANCE
+            | FEATURE_DISPLAY_COLOR_CALIBRATION | FEATURE_DISPLAY_MODES
+            | FEATURE_PICTURE_ADJUSTMENT;
+    private final Object mCapabilitiesLock = new Object();
+    private volatile DisplayCapabilities mDisplayCapabilities;
 
     /**
      * @hide to prevent subclassing from outside of the framework
@@ -213,6 +298,159 @@ public final class LineageHardwareManager {
         }
         mFilterDisplayModes = mContext.getResources().getBoolean(
                 org.lineageos.platform.internal.R.bool.config_filterDisplayModes);
+
+        startDiscovery();
+    }
+
+    /**
+     * Probe all AIDL and HIDL hals concurrently in the background, since each
+     * lookup may block until the hal is started.
+     */
+    private void startDiscovery() {
+        final long start = SystemClock.elapsedRealtime();
+        final AtomicInteger pending =
+                new AtomicInteger(AIDL_FEATURES.length + HIDL_FEATURES.length);
+        final ExecutorService executor = Executors.newFixedThreadPool(DISCOVERY_THREADS, r -> {
+            Thread t = new Thread(r, TAG + "-discovery");
+            t.setDaemon(true);
+            return t;
+        });
+
+        synchronized (mHalLock) {
+            for (int feature : AIDL_FEATURES) {
+                mProbingAIDL |= feature;
+            }
+            for (int feature : HIDL_FEATURES) {
+                mProbingHIDL |= feature;
+            }
+        }
+
+        for (int feature : AIDL_FEATURES) {
+            executor.execute(() -> {
+                final long probeStart = SystemClock.elapsedRealtime();
+                final IBinder b = getAIDLService(feature);
+                synchronized (mAIDLDiscoveryTimes) {
+                    mAIDLDiscoveryTimes.put(feature, SystemClock.elapsedRealtime() - probeStart);
+                }
+                publishAIDL(feature, b, false);
+                synchronized (mHalLock) {
+                    mProbingAIDL &= ~feature;
+                    mHalLock.notifyAll();
+                }
+                if (pending.decrementAndGet() == 0) {
+                    finishDiscovery(start);
+                }
+            });
+        }
+        for (int feature : HIDL_FEATURES) {
+            executor.execute(() -> {
+                final long probeStart = SystemClock.elapsedRealtime();
+                final IBase obj = getHIDLService(feature);
+                synchronized (mHIDLDiscoveryTimes) {
+                    mHIDLDiscoveryTimes.put(feature, SystemClock.elapsedRealtime() - probeStart);
+                }
+                publishHIDL(feature, obj, false);
+                synchronized (mHalLock) {
+                    mProbingHIDL &= ~feature;
+                    mHalLock.notifyAll();
+                }
+                if (pending.decrementAndGet() == 0) {
+                    finishDiscovery(start);
+                }
+            });
+        }
+        executor.shutdown();
+    }
+
+    private void finishDiscovery(long start) {
+        int features = 0;
+        for (int feature : AIDL_FEATURES) {
+            if (getAIDL(feature) != null) {
+                features |= feature;
+            }
+        }
+        for (int feature : HIDL_FEATURES) {
+            if (getHIDL(feature) != null) {
+                features |= feature;
+            }
+        }
+        mDiscoveredFeatures = features;
+        mDiscoveryLatch.countDown();
+
+        final String aidlTimes;
+        synchronized (mAIDLDiscoveryTimes) {
+            aidlTimes = mAIDLDiscoveryTimes.toString();
+        }
+        final String hidlTimes;
+        synchronized (mHIDLDiscoveryTimes) {
+            hidlTimes = mHIDLDiscoveryTimes.toString();
+        }
+        Log.d(TAG, "Hal discovery finished in " + (SystemClock.elapsedRealtime() - start)
+                + "ms, features=0x" + Integer.toHexString(features)
+                + ", aidl=" + aidlTimes + ", hidl=" + hidlTimes);
+    }
+
+    /**
+     * Wait for discovery to finish probing a single feature.
+     */
+    private void awaitProbe(int feature, boolean aidl) {
+        final long deadline = SystemClock.elapsedRealtime() + DISCOVERY_TIMEOUT_MS;
+        synchronized (mHalLock) {
+            while (((aidl ? mProbingAIDL : mProbingHIDL) & feature) != 0) {
+                final long remaining = deadline - SystemClock.elapsedRealtime();
+                if (remaining <= 0) {
+                    break;
+                }
+                try {
+                    mHalLock.wait(remaining);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    break;
+                }
+            }
+        }
+    }
+
+    /**
+     * Get the features backed by an AIDL or HIDL hal without blocking.
+     *
+     * @return the bitmask of supported features, or -1 if discovery is still running
+     *
+     * @hide
+     */
+    public int getDiscoveredFeatures() {
+        return mDiscoveredFeatures;
+    }
+
+    /**
+     * Wait for hal discovery to finish.
+     *
+     * @param timeoutMillis the maximum time to wait
+     * @return the bitmask of features backed by an AIDL or HIDL hal, or -1 on timeout
+     *
+     * @hide
+     */
+    public int awaitDiscoveredFeatures(long timeoutMillis) {
+        try {
+            mDiscoveryLatch.await(timeoutMillis, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        return mDiscoveredFeatures;
+    }
+
+    /**
+     * Get the time in milliseconds each hal took to be discovered, keyed by feature.
+     *
+     * @param aidl true for AIDL hals, false for HIDL hals
+     *
+     * @hide
+     */
+    public SparseLongArray getDiscoveryTimes(boolean aidl) {
+        final SparseLongArray times = aidl ? mAIDLDiscoveryTimes : mHIDLDiscoveryTimes;
+        synchronized (times) {
+            return times.clone();
+        }
     }
 
     /**
@@ -252,17 +490,101 @@ public final class LineageHardwareManager {
     }
 
     private boolean isSupportedAIDL(int feature) {
-        if (!mAIDLMap.containsKey(feature)) {
-            mAIDLMap.put(feature, getAIDLService(feature));
+        if (Integer.bitCount(feature) != 1) {
+            return false;
         }
-        return mAIDLMap.get(feature) != null;
+        if ((mResolvedAIDL & feature) == 0) {
+            awaitProbe(feature, true);
+            if ((mResolvedAIDL & feature) == 0) {
+                // discovery timed out or the hal died, resolve it ourselves
+                publishAIDL(feature, getAIDLService(feature), true);
+            }
+        }
+        return getAIDL(feature) != null;
     }
 
     private boolean isSupportedHIDL(int feature) {
-        if (!mHIDLMap.containsKey(feature)) {
-            mHIDLMap.put(feature, getHIDLService(feature));
+        if (Integer.bitCount(feature) != 1) {
+            return false;
+        }
+        if ((mResolvedHIDL & feature) == 0) {
+            awaitProbe(feature, false);
+            if ((mResolvedHIDL & feature) == 0) {
+                // discovery timed out or the hal died, resolve it ourselves
+                publishHIDL(feature, getHIDLService(feature), true);
+            }
+        }
+        return getHIDL(feature) != null;
+    }
+
+    private static int getIndex(int feature) {
+        return Integer.numberOfTrailingZeros(feature);
+    }
+
+    private IBinder getAIDL(int feature) {
+        return mAIDLHals.get(getIndex(feature));
+    }
+
+    private IBase getHIDL(int feature) {
+        return mHIDLHals.get(getIndex(feature));
+    }
+
+    private void publishAIDL(int feature, IBinder b, boolean replace) {
+        final int index = getIndex(feature);
+        synchronized (mHalLock) {
+            if (!replace && (mResolvedAIDL & feature) != 0) {
+                return;
+            }
+            mAIDLHals.set(index, b);
+            mResolvedAIDL |= feature;
+        }
+        if (b != null) {
+            try {
+                b.linkToDeath(() -> {
+                    Log.w(TAG, "AIDL hal for feature " + feature + " died");
+                    synchronized (mHalLock) {
+                        if (mAIDLHals.get(index) == b) {
+                            // keep the dead handle until it is resolved again, so
+                            // concurrent callers fail with a RemoteException
+                            mResolvedAIDL &= ~feature;
+                        }
+                    }
+                }, 0);
+            } catch (RemoteException e) {
+                synchronized (mHalLock) {
+                    mResolvedAIDL &= ~feature;
+                }
+            }
+        }
+    }
+
+    private void publishHIDL(int feature, IBase obj, boolean replace) {
+        final int index = getIndex(feature);
+        synchronized (mHalLock) {
+            if (!replace && (mResolvedHIDL & feature) != 0) {
+                return;
+            }
+            mHIDLHals.set(index, obj);
+            mResolvedHIDL |= feature;
+        }
+        if (obj != null) {
+            try {
+                obj.linkToDeath(cookie -> {
+                    Log.w(TAG, "HIDL hal for feature " + feature + " died");
+                    synchronized (mHalLock) {
+                        if (mHIDLHals.get(index) == obj) {
+                            // keep the dead handle until it is resolved again, so
+                            // concurrent callers fail with a RemoteException
+                            mResolvedHIDL &= ~feature;
+                        }
+                    }
+                }, 0);
+            } catch (RemoteException e) {
+                synchronized (mHalLock) {
+                    mResolvedHIDL &= ~feature;
+                }
+            }
         }
-        return mHIDLMap.get(feature) != null;
     }
 
     private boolean isSupportedHWC2(int feature) {
@@ -346,19 +668,12 @@ public final class LineageHardwareManager {
      * @hide
      */
     public boolean isSupported(String feature) {
-        if (!feature.startsWith("FEATURE_")) {
+        final Integer f = FEATURE_NAMES.get(feature);
+        if (f == null) {
+            Log.d(TAG, "Unknown feature " + feature);
             return false;
         }
-        try {
-            Field f = getClass().getField(feature);
-            if (f != null) {
-                return isSupported((int) f.get(null));
-            }
-        } catch (NoSuchFieldException | IllegalAccessException e) {
-            Log.d(TAG, e.getMessage(), e);
-        }
-
-        return false;
+        return isSupported(f);
     }
     /**
      * Determine if the given feature is enabled or disabled.
@@ -370,13 +685,13 @@ public final class LineageHardwareManager {
      * @return true if the feature is enabled, false otherwise.
      */
     public boolean get(int feature) {
-        if (!BOOLEAN_FEATURES.contains(feature)) {
+        if ((BOOLEAN_FEATURES & feature) == 0 || Integer.bitCount(feature) != 1) {
             throw new IllegalArgumentException(feature + " is not a boolean");
         }
 
         try {
             if (isSupportedAIDL(feature)) {
-                IBinder b = mAIDLMap.get(feature);
+                IBinder b = getAIDL(feature);
                 switch (feature) {
                     case FEATURE_HIGH_TOUCH_POLLING_RATE:
                         vendor.lineage.touch.IHighTouchPollingRate highTouchPollingRate =
@@ -400,7 +715,7 @@ public final class LineageHardwareManager {
                         return stylusMode.getEnabled();
                 }
             } else if (isSupportedHIDL(feature)) {
-                IBase obj = mHIDLMap.get(feature);
+                IBase obj = getHIDL(feature);
                 switch (feature) {
                     case FEATURE_ADAPTIVE_BACKLIGHT:
                         IAdaptiveBacklight adaptiveBacklight = (IAdaptiveBacklight) obj;
@@ -460,13 +775,13 @@ public final class LineageHardwareManager {
      * @return true if the feature is enabled, false otherwise.
      */
     public boolean set(int feature, boolean enable) {
-        if (!BOOLEAN_FEATURES.contains(feature)) {
+        if ((BOOLEAN_FEATURES & feature) == 0 || Integer.bitCount(feature) != 1) {
             throw new IllegalArgumentException(feature + " is not a boolean");
         }
 
         try {
             if (isSupportedAIDL(feature)) {
-                IBinder b = mAIDLMap.get(feature);
+                IBinder b = getAIDL(feature);
                 switch (feature) {
                     case FEATURE_HIGH_TOUCH_POLLING_RATE:
                         vendor.lineage.touch.IHighTouchPollingRate highTouchPollingRate =
@@ -497,7 +812,7 @@ public final class LineageHardwareManager {
                 return enable;
             }
             if (isSupportedHIDL(feature)) {
-                IBase obj = mHIDLMap.get(feature);
+                IBase obj = getHIDL(feature);
                 switch (feature) {
                     case FEATURE_ADAPTIVE_BACKLIGHT:
                         IAdaptiveBacklight adaptiveBacklight = (IAdaptiveBacklight) obj;
@@ -577,18 +892,23 @@ public final class LineageHardwareManager {
 
     private int[] getDisplayColorCalibrationArray() {
         try {
-            if (isSupportedHIDL(FEATURE_DISPLAY_COLOR_CALIBRATION)) {
-                IDisplayColorCalibration displayColorCalibration = (IDisplayColorCalibration)
-                        mHIDLMap.get(FEATURE_DISPLAY_COLOR_CALIBRATION);
-                return ArrayUtils.convertToIntArray(displayColorCalibration.getCalibration());
-            } else if (checkService()) {
-                return sService.getDisplayColorCalibration();
-            }
+            return queryDisplayColorCalibrationArray();
         } catch (RemoteException e) {
         }
         return null;
     }
 
+    private int[] queryDisplayColorCalibrationArray() throws RemoteException {
+        if (isSupportedHIDL(FEATURE_DISPLAY_COLOR_CALIBRATION)) {
+            IDisplayColorCalibration displayColorCalibration = (IDisplayColorCalibration)
+                    getHIDL(FEATURE_DISPLAY_COLOR_CALIBRATION);
+            return ArrayUtils.convertToIntArray(displayColorCalibration.getCalibration());
+        } else if (checkService()) {
+            return sService.getDisplayColorCalibration();
+        }
+        return null;
+    }
+
     /**
      * @return the current RGB calibration, where int[0] = R, int[1] = G, int[2] = B.
      */
@@ -604,34 +924,14 @@ public final class LineageHardwareManager {
      * @return The minimum value for all colors
      */
     public int getDisplayColorCalibrationMin() {
-        if (isSupportedHIDL(FEATURE_DISPLAY_COLOR_CALIBRATION)) {
-            IDisplayColorCalibration displayColorCalibration = (IDisplayColorCalibration)
-                    mHIDLMap.get(FEATURE_DISPLAY_COLOR_CALIBRATION);
-            try {
-                return displayColorCalibration.getMinValue();
-            } catch (RemoteException e) {
-                return 0;
-            }
-        }
-
-        return getArrayValue(getDisplayColorCalibrationArray(), COLOR_CALIBRATION_MIN_INDEX, 0);
+        return getDisplayCapabilities().mCalibrationMin;
     }
 
     /**
      * @return The maximum value for all colors
      */
     public int getDisplayColorCalibrationMax() {
-        if (isSupportedHIDL(FEATURE_DISPLAY_COLOR_CALIBRATION)) {
-            IDisplayColorCalibration displayColorCalibration = (IDisplayColorCalibration)
-                    mHIDLMap.get(FEATURE_DISPLAY_COLOR_CALIBRATION);
-            try {
-                return displayColorCalibration.getMaxValue();
-            } catch (RemoteException e) {
-                return 0;
-            }
-        }
-
-        return getArrayValue(getDisplayColorCalibrationArray(), COLOR_CALIBRATION_MAX_INDEX, 0);
+        return getDisplayCapabilities().mCalibrationMax;
     }
 
     /**
@@ -647,7 +947,7 @@ public final class LineageHardwareManager {
         try {
             if (isSupportedHIDL(FEATURE_DISPLAY_COLOR_CALIBRATION)) {
                 IDisplayColorCalibration displayColorCalibration = (IDisplayColorCalibration)
-                        mHIDLMap.get(FEATURE_DISPLAY_COLOR_CALIBRATION);
+                        getHIDL(FEATURE_DISPLAY_COLOR_CALIBRATION);
                 return displayColorCalibration.setCalibration(
                        new ArrayList<Integer>(Arrays.asList(rgb[0], rgb[1], rgb[2])));
             } else if (checkService()) {
@@ -662,26 +962,8 @@ public final class LineageHardwareManager {
      * @return a list of available display modes on the devices
      */
     public DisplayMode[] getDisplayModes() {
-        DisplayMode[] modes = null;
-        try {
-            if (isSupportedHIDL(FEATURE_DISPLAY_MODES)) {
-                IDisplayModes displayModes = (IDisplayModes) mHIDLMap.get(FEATURE_DISPLAY_MODES);
-                modes = HIDLHelper.fromHIDLModes(displayModes.getDisplayModes());
-            }
-        } catch (RemoteException e) {
-        } finally {
-            if (modes == null) {
-                return null;
-            }
-            final ArrayList<DisplayMode> remapped = new ArrayList<DisplayMode>();
-            for (DisplayMode mode : modes) {
-                DisplayMode r = remapDisplayMode(mode);
-                if (r != null) {
-                    remapped.add(r);
-                }
-            }
-            return remapped.toArray(new DisplayMode[0]);
-        }
+        final DisplayMode[] modes = getDisplayCapabilities().mDisplayModes;
+        return modes != null ? modes.clone() : null;
     }
 
     /**
@@ -691,7 +973,7 @@ public final class LineageHardwareManager {
         DisplayMode mode = null;
         try {
             if (isSupportedHIDL(FEATURE_DISPLAY_MODES)) {
-                IDisplayModes displayModes = (IDisplayModes) mHIDLMap.get(FEATURE_DISPLAY_MODES);
+                IDisplayModes displayModes = (IDisplayModes) getHIDL(FEATURE_DISPLAY_MODES);
                 mode = HIDLHelper.fromHIDLMode(displayModes.getCurrentDisplayMode());
             }
         } catch (RemoteException e) {
@@ -707,7 +989,7 @@ public final class LineageHardwareManager {
         DisplayMode mode = null;
         try {
             if (isSupportedHIDL(FEATURE_DISPLAY_MODES)) {
-                IDisplayModes displayModes = (IDisplayModes) mHIDLMap.get(FEATURE_DISPLAY_MODES);
+                IDisplayModes displayModes = (IDisplayModes) getHIDL(FEATURE_DISPLAY_MODES);
                 mode = HIDLHelper.fromHIDLMode(displayModes.getDefaultDisplayMode());
             }
         } catch (RemoteException e) {
@@ -722,7 +1004,7 @@ public final class LineageHardwareManager {
     public boolean setDisplayMode(DisplayMode mode, boolean makeDefault) {
         try {
             if (isSupportedHIDL(FEATURE_DISPLAY_MODES)) {
-                IDisplayModes displayModes = (IDisplayModes) mHIDLMap.get(FEATURE_DISPLAY_MODES);
+                IDisplayModes displayModes = (IDisplayModes) getHIDL(FEATURE_DISPLAY_MODES);
                 return displayModes.setDisplayMode(mode.id, makeDefault);
             }
         } catch (RemoteException e) {
@@ -747,14 +1029,7 @@ public final class LineageHardwareManager {
      * @return the available range for color temperature adjustments
      */
     public Range<Integer> getColorBalanceRange() {
-        try {
-            if (isSupportedHIDL(FEATURE_COLOR_BALANCE)) {
-                IColorBalance colorBalance = (IColorBalance) mHIDLMap.get(FEATURE_COLOR_BALANCE);
-                return HIDLHelper.fromHIDLRange(colorBalance.getColorBalanceRange());
-            }
-        } catch (RemoteException e) {
-        }
-        return new Range<Integer>(0, 0);
+        return getDisplayCapabilities().mColorBalanceRange;
     }
 
     /**
@@ -763,7 +1038,7 @@ public final class LineageHardwareManager {
     public int getColorBalance() {
         try {
             if (isSupportedHIDL(FEATURE_COLOR_BALANCE)) {
-                IColorBalance colorBalance = (IColorBalance) mHIDLMap.get(FEATURE_COLOR_BALANCE);
+                IColorBalance colorBalance = (IColorBalance) getHIDL(FEATURE_COLOR_BALANCE);
                 return colorBalance.getColorBalance();
             }
         } catch (RemoteException e) {
@@ -781,7 +1056,7 @@ public final class LineageHardwareManager {
     public boolean setColorBalance(int value) {
         try {
             if (isSupportedHIDL(FEATURE_COLOR_BALANCE)) {
-                IColorBalance colorBalance = (IColorBalance) mHIDLMap.get(FEATURE_COLOR_BALANCE);
+                IColorBalance colorBalance = (IColorBalance) getHIDL(FEATURE_COLOR_BALANCE);
                 return colorBalance.setColorBalance(value);
             }
         } catch (RemoteException e) {
@@ -798,7 +1073,7 @@ public final class LineageHardwareManager {
         try {
             if (isSupportedHIDL(FEATURE_PICTURE_ADJUSTMENT)) {
                 IPictureAdjustment pictureAdjustment = (IPictureAdjustment)
-                        mHIDLMap.get(FEATURE_PICTURE_ADJUSTMENT);
+                        getHIDL(FEATURE_PICTURE_ADJUSTMENT);
                 return HIDLHelper.fromHIDLHSIC(pictureAdjustment.getPictureAdjustment());
             }
         } catch (RemoteException e) {
@@ -815,7 +1090,7 @@ public final class LineageHardwareManager {
         try {
             if (isSupportedHIDL(FEATURE_PICTURE_ADJUSTMENT)) {
                 IPictureAdjustment pictureAdjustment = (IPictureAdjustment)
-                        mHIDLMap.get(FEATURE_PICTURE_ADJUSTMENT);
+                        getHIDL(FEATURE_PICTURE_ADJUSTMENT);
                 return HIDLHelper.fromHIDLHSIC(pictureAdjustment.getDefaultPictureAdjustment());
             }
         } catch (RemoteException e) {
@@ -833,7 +1108,7 @@ public final class LineageHardwareManager {
         try {
             if (isSupportedHIDL(FEATURE_PICTURE_ADJUSTMENT)) {
                 IPictureAdjustment pictureAdjustment = (IPictureAdjustment)
-                        mHIDLMap.get(FEATURE_PICTURE_ADJUSTMENT);
+                        getHIDL(FEATURE_PICTURE_ADJUSTMENT);
                 return pictureAdjustment.setPictureAdjustment(HIDLHelper.toHIDLHSIC(hsic));
             }
         } catch (RemoteException e) {
@@ -847,20 +1122,127 @@ public final class LineageHardwareManager {
      * @return range list
      */
     public List<Range<Float>> getPictureAdjustmentRanges() {
-        try {
-            if (isSupportedHIDL(FEATURE_PICTURE_ADJUSTMENT)) {
-                IPictureAdjustment pictureAdjustment = (IPictureAdjustment)
-                        mHIDLMap.get(FEATURE_PICTURE_ADJUSTMENT);
-                return Arrays.asList(
-                        HIDLHelper.fromHIDLRange(pictureAdjustment.getHueRange()),
-                        HIDLHelper.fromHIDLRange(pictureAdjustment.getSaturationRange()),
-                        HIDLHelper.fromHIDLRange(pictureAdjustment.getIntensityRange()),
-                        HIDLHelper.fromHIDLRange(pictureAdjustment.getContrastRange()),
-                        HIDLHelper.fromHIDLRange(pictureAdjustment.getSaturationThresholdRange()));
+        return getDisplayCapabilities().mPictureAdjustmentRanges;
+    }
+
+    /**
+     * Immutable snapshot of the display capabilities which never change at
+     * runtime, so they are only read from the hals once per process.
+     */
+    private static final class DisplayCapabilities {
+        // the supported hidl features this snapshot was read with
+        final int mFeatures;
+        final DisplayMode[] mDisplayModes;
+        final Range<Integer> mColorBalanceRange;
+        final int mCalibrationMin;
+        final int mCalibrationMax;
+        final List<Range<Float>> mPictureAdjustmentRanges;
+        // false if part of it couldn't be read yet, e.g. the legacy service isn't up
+        final boolean mComplete;
+
+        DisplayCapabilities(int features, DisplayMode[] displayModes,
+                Range<Integer> colorBalanceRange, int calibrationMin, int calibrationMax,
+                List<Range<Float>> pictureAdjustmentRanges, boolean complete) {
+            mFeatures = features;
+            mDisplayModes = displayModes;
+            mColorBalanceRange = colorBalanceRange;
+            mCalibrationMin = calibrationMin;
+            mCalibrationMax = calibrationMax;
+            mPictureAdjustmentRanges = pictureAdjustmentRanges;
+            mComplete = complete;
+        }
+    }
+
+    private int getDisplayCapabilityFeatures() {
+        int features = 0;
+        for (int feature : HIDL_FEATURES) {
+            if ((DISPLAY_CAPABILITY_FEATURES & feature) != 0 && isSupportedHIDL(feature)) {
+                features |= feature;
             }
-        } catch (RemoteException e) {
         }
-        return null;
+        return features;
+    }
+
+    private DisplayCapabilities getDisplayCapabilities() {
+        // a hal which shows up late invalidates the snapshot
+        final int features = getDisplayCapabilityFeatures();
+        DisplayCapabilities caps = mDisplayCapabilities;
+        if (caps != null && caps.mFeatures == features) {
+            return caps;
+        }
+
+        synchronized (mCapabilitiesLock) {
+            caps = mDisplayCapabilities;
+            if (caps != null && caps.mFeatures == features) {
+                return caps;
+            }
+            try {
+                caps = readDisplayCapabilities(features);
+                if (caps.mComplete) {
+                    mDisplayCapabilities = caps;
+                }
+            } catch (RemoteException e) {
+                // don't keep a snapshot of a failed read, try again next time
+                Log.w(TAG, "Unable to read display capabilities", e);
+                caps = new DisplayCapabilities(features, null, new Range<Integer>(0, 0),
+                        0, 0, null, false);
+            }
+            return caps;
+        }
+    }
+
+    private DisplayCapabilities readDisplayCapabilities(int features) throws RemoteException {
+        DisplayMode[] modes = null;
+        if ((features & FEATURE_DISPLAY_MODES) != 0) {
+            IDisplayModes displayModes = (IDisplayModes) getHIDL(FEATURE_DISPLAY_MODES);
+            final DisplayMode[] hidlModes =
+                    HIDLHelper.fromHIDLModes(displayModes.getDisplayModes());
+            final ArrayList<DisplayMode> remapped = new ArrayList<DisplayMode>();
+            for (DisplayMode mode : hidlModes) {
+                DisplayMode r = remapDisplayMode(mode);
+                if (r != null) {
+                    remapped.add(r);
+                }
+            }
+            modes = remapped.toArray(new DisplayMode[0]);
+        }
+
+        Range<Integer> colorBalanceRange = new Range<Integer>(0, 0);
+        if ((features & FEATURE_COLOR_BALANCE) != 0) {
+            IColorBalance colorBalance = (IColorBalance) getHIDL(FEATURE_COLOR_BALANCE);
+            colorBalanceRange = HIDLHelper.fromHIDLRange(colorBalance.getColorBalanceRange());
+        }
+
+        boolean complete = true;
+        final int calibrationMin;
+        final int calibrationMax;
+        if ((features & FEATURE_DISPLAY_COLOR_CALIBRATION) != 0) {
+            IDisplayColorCalibration displayColorCalibration = (IDisplayColorCalibration)
+                    getHIDL(FEATURE_DISPLAY_COLOR_CALIBRATION);
+            calibrationMin = displayColorCalibration.getMinValue();
+            calibrationMax = displayColorCalibration.getMaxValue();
+        } else {
+            final int[] arr = queryDisplayColorCalibrationArray();
+            // query again next time rather than keeping the fallback values
+            complete = arr != null;
+            calibrationMin = getArrayValue(arr, COLOR_CALIBRATION_MIN_INDEX, 0);
+            calibrationMax = getArrayValue(arr, COLOR_CALIBRATION_MAX_INDEX, 0);
+        }
+
+        List<Range<Float>> pictureAdjustmentRanges = null;
+        if ((features & FEATURE_PICTURE_ADJUSTMENT) != 0) {
+            IPictureAdjustment pictureAdjustment = (IPictureAdjustment)
+                    getHIDL(FEATURE_PICTURE_ADJUSTMENT);
+            pictureAdjustmentRanges = Collections.unmodifiableList(Arrays.asList(
+                    HIDLHelper.fromHIDLRange(pictureAdjustment.getHueRange()),
+                    HIDLHelper.fromHIDLRange(pictureAdjustment.getSaturationRange()),
+                    HIDLHelper.fromHIDLRange(pictureAdjustment.getIntensityRange()),
+                    HIDLHelper.fromHIDLRange(pictureAdjustment.getContrastRange()),
+                    HIDLHelper.fromHIDLRange(pictureAdjustment.getSaturationThresholdRange())));
+        }
+
+        return new DisplayCapabilities(features, modes, colorBalanceRange,
+                calibrationMin, calibrationMax, pictureAdjustmentRanges, complete);
     }
 
     /**
@@ -871,13 +1253,13 @@ public final class LineageHardwareManager {
             if (isSupportedAIDL(FEATURE_TOUCHSCREEN_GESTURES)) {
                 vendor.lineage.touch.ITouchscreenGesture touchscreenGesture =
                         vendor.lineage.touch.ITouchscreenGesture.Stub.asInterface(
-                                mAIDLMap.get(FEATURE_TOUCHSCREEN_GESTURES));
+                                getAIDL(FEATURE_TOUCHSCREEN_GESTURES));
                 return AIDLHelper.fromAIDLGestures(touchscreenGesture.getSupportedGestures());
             }
             if (isSupportedHIDL(FEATURE_TOUCHSCREEN_GESTURES)) {
                 vendor.lineage.touch.V1_0.ITouchscreenGesture touchscreenGesture =
                         (vendor.lineage.touch.V1_0.ITouchscreenGesture)
-                                mHIDLMap.get(FEATURE_TOUCHSCREEN_GESTURES);
+                                getHIDL(FEATURE_TOUCHSCREEN_GESTURES);
                 return HIDLHelper.fromHIDLGestures(touchscreenGesture.getSupportedGestures());
             }
         } catch (Exception e) {
@@ -894,14 +1276,14 @@ public final class LineageHardwareManager {
             if (isSupportedAIDL(FEATURE_TOUCHSCREEN_GESTURES)) {
                 vendor.lineage.touch.ITouchscreenGesture touchscreenGesture =
                         vendor.lineage.touch.ITouchscreenGesture.Stub.asInterface(
-                                mAIDLMap.get(FEATURE_TOUCHSCREEN_GESTURES));
+                                getAIDL(FEATURE_TOUCHSCREEN_GESTURES));
                 touchscreenGesture.setGestureEnabled(AIDLHelper.toAIDLGesture(gesture), state);
                 return true;
             }
             if (isSupportedHIDL(FEATURE_TOUCHSCREEN_GESTURES)) {
                 vendor.lineage.touch.V1_0.ITouchscreenGesture touchscreenGesture =
                         (vendor.lineage.touch.V1_0.ITouchscreenGesture)
-                                mHIDLMap.get(FEATURE_TOUCHSCREEN_GESTURES);
+                                getHIDL(FEATURE_TOUCHSCREEN_GESTURES);
                 return touchscreenGesture.setGestureEnabled(
                         HIDLHelper.toHIDLGesture(gesture), state);
             }
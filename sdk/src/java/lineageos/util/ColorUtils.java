@@ -4,10 +4,7 @@
  */
 package lineageos.util;
 
-import android.graphics.Bitmap;
-import android.graphics.Canvas;
 import android.graphics.Color;
-import android.graphics.drawable.BitmapDrawable;
 import android.graphics.drawable.Drawable;
 import android.util.MathUtils;
 
@@ -27,6 +24,16 @@ public class ColorUtils {
         Color.BLUE, Color.MAGENTA, Color.WHITE, Color.BLACK
     };
 
+    private static class SolidColorsHolder {
+        static final PerceptualPalette sPalette = new PerceptualPalette(SOLID_COLORS);
+    }
+
+    // Created on first use, it holds a bitmap
+    private static class LedColorExtractorHolder {
+        static final LedColorExtractor sInstance =
+                new LedColorExtractor(new PerceptualPalette(SOLID_COLORS));
+    }
+
     /**
      * Drop the alpha component from an RGBA packed int and return
      * a non sign-extended RGB int.
@@ -47,6 +54,11 @@ public class ColorUtils {
      */
     public static float[] convertRGBtoLAB(int rgb) {
         float[] lab = new float[3];
+        convertRGBtoLAB(rgb, lab);
+        return lab;
+    }
+
+    static void convertRGBtoLAB(int rgb, float[] lab) {
         float fx, fy, fz;
         float eps = 216.f / 24389.f;
         float k = 24389.f / 27.f;
@@ -107,8 +119,6 @@ public class ColorUtils {
         lab[0] = (2.55f * Ls + .5f);
         lab[1] = (as + .5f);
         lab[2] = (bs + .5f);
-
-        return lab;
     }
 
     /**
@@ -195,9 +205,10 @@ public class ColorUtils {
         double closest = Double.MAX_VALUE;
 
         float[] original = convertRGBtoLAB(rgb);
+        float[] cl = new float[3];
 
         for (int i = 0; i < colors.length; i++) {
-            float[] cl = convertRGBtoLAB(colors[i]);
+            convertRGBtoLAB(colors[i], cl);
             double deltaE = calculateDeltaE(original[0], original[1], original[2],
                                             cl[0], cl[1], cl[2]);
             if (deltaE < closest) {
@@ -218,7 +229,7 @@ public class ColorUtils {
      * @return the perceptually nearest color in RGB
      */
     public static int findPerceptuallyNearestSolidColor(int rgb) {
-        return findPerceptuallyNearestColor(rgb, SOLID_COLORS);
+        return SolidColorsHolder.sPalette.findNearestColor(rgb);
     }
 
     /**
@@ -241,61 +252,19 @@ public class ColorUtils {
     }
 
     /**
-     * Takes a drawable and uses Palette to generate a suitable "alert"
-     * color which can be used for an external notification mechanism
-     * such as an RGB LED. This will always pick a solid color having
-     * RGB components of 255 or 0.
+     * Takes a drawable and generates a suitable "alert" color which
+     * can be used for an external notification mechanism such as an
+     * RGB LED. This will always pick a solid color having RGB
+     * components of 255 or 0.
      *
      * @param drawable The drawable to generate a color for
      * @return a suitable solid color which corresponds to the image
      */
     public static int generateAlertColorFromDrawable(Drawable drawable) {
-        int alertColor = Color.BLACK;
-        Bitmap bitmap = null;
-
         if (drawable == null) {
-            return alertColor;
-        }
-
-        if (drawable instanceof BitmapDrawable) {
-            bitmap = ((BitmapDrawable) drawable).getBitmap();
-        } else {
-            int width = drawable.getIntrinsicWidth();
-            int height = drawable.getIntrinsicHeight();
-            bitmap = Bitmap.createBitmap(Math.max(1, width),
-                                         Math.max(1, height),
-                                         Bitmap.Config.ARGB_8888);
-            Canvas canvas = new Canvas(bitmap);
-            drawable.setBounds(0, 0, canvas.getWidth(), canvas.getHeight());
-            drawable.draw(canvas);
+            return Color.BLACK;
         }
-
-        if (bitmap != null) {
-            Palette p = Palette.from(bitmap).generate();
-            if (p == null) {
-                return alertColor;
-            }
-
-            // First try the dominant color
-            final Palette.Swatch dominantSwatch = getDominantSwatch(p);
-            int iconColor = alertColor;
-            if (dominantSwatch != null) {
-                iconColor = dominantSwatch.getRgb();
-                alertColor = findPerceptuallyNearestSolidColor(iconColor);
-            }
-
-            // Try the most saturated color if we got white or black (boring)
-            if (alertColor == Color.BLACK || alertColor == Color.WHITE) {
-                iconColor = p.getVibrantColor(Color.WHITE);
-                alertColor = findPerceptuallyNearestSolidColor(iconColor);
-            }
-
-            if (!(drawable instanceof BitmapDrawable)) {
-                bitmap.recycle();
-            }
-        }
-
-        return alertColor;
+        return LedColorExtractorHolder.sInstance.extract(drawable);
     }
 
     /**
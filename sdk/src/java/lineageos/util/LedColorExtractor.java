@@ -0,0 +1,369 @@
+/*
+ * SPDX-FileCopyrightText: 2024 The LineageOS Project
+ * SPDX-License-Identifier: Apache-2.0
+ */
+
+package lineageos.util;
+
+import android.graphics.Bitmap;
+import android.graphics.Canvas;
+import android.graphics.Color;
+import android.graphics.Paint;
+import android.graphics.Rect;
+import android.graphics.drawable.BitmapDrawable;
+import android.graphics.drawable.Drawable;
+
+import java.util.Arrays;
+
+/**
+ * Picks a solid LED color for a drawable without building a full Palette.
+ *
+ * The drawable is rendered at a small fixed size into a reused buffer and
+ * the pixels are bucketed into 15-bit colors, filtered like Palette does:
+ * near black, near white and skin tone buckets are dropped. The buckets are
+ * then clustered by median cut as in Palette, and the average color of the
+ * most populated cluster is snapped to the perceptually nearest solid color.
+ * If that is black or white the vibrant cluster is used instead, as picked
+ * by Palette's default generator.
+ */
+final class LedColorExtractor {
+    private static final int SIZE = 32;
+
+    // Translucent pixels are mostly antialiasing and shadows
+    private static final int MIN_ALPHA = 0x80;
+
+    // Same as Palette's default number of colors
+    private static final int MAX_CLUSTERS = 16;
+
+    private static final int QUANTIZE_WORD_WIDTH = 5;
+    private static final int QUANTIZE_WORD_MASK = (1 << QUANTIZE_WORD_WIDTH) - 1;
+
+    // Same as the default Palette filter and generator
+    private static final float BLACK_MAX_LIGHTNESS = 0.05f;
+    private static final float WHITE_MIN_LIGHTNESS = 0.95f;
+    private static final float MIN_VIBRANT_SATURATION = 0.35f;
+    private static final float TARGET_VIBRANT_LUMA = 0.5f;
+    private static final float MIN_VIBRANT_LUMA = 0.3f;
+    private static final float MAX_VIBRANT_LUMA = 0.7f;
+    private static final float TARGET_DARK_VIBRANT_LUMA = 0.26f;
+    private static final float MAX_DARK_VIBRANT_LUMA = 0.45f;
+
+    private final PerceptualPalette mPalette;
+
+    private final Bitmap mBitmap = Bitmap.createBitmap(SIZE, SIZE, Bitmap.Config.ARGB_8888);
+    private final Canvas mCanvas = new Canvas(mBitmap);
+    private final Paint mPaint = new Paint(Paint.FILTER_BITMAP_FLAG);
+    private final Rect mBounds = new Rect();
+    private final Rect mDst = new Rect(0, 0, SIZE, SIZE);
+    private final int[] mPixels = new int[SIZE * SIZE];
+
+    // Populations of the 15-bit buckets, and the buckets in use
+    private final int[] mHistogram = new int[1 << (3 * QUANTIZE_WORD_WIDTH)];
+    private final int[] mColors = new int[SIZE * SIZE];
+
+    // Each cluster is a range of mColors, lower and upper index are inclusive
+    private final int[] mClusterLower = new int[MAX_CLUSTERS];
+    private final int[] mClusterUpper = new int[MAX_CLUSTERS];
+    private int mClusterCount;
+
+    // Average colors and populations of the clusters which passed the filter
+    private final int[] mSwatchColors = new int[MAX_CLUSTERS];
+    private final int[] mSwatchPopulations = new int[MAX_CLUSTERS];
+    private int mSwatchCount;
+
+    private final float[] mHsl = new float[3];
+
+    /**
+     * @param palette the solid colors to pick from, which must include
+     *                {@link Color#BLACK} and {@link Color#WHITE}
+     */
+    LedColorExtractor(PerceptualPalette palette) {
+        mPalette = palette;
+    }
+
+    synchronized int extract(Drawable drawable) {
+        render(drawable);
+        mBitmap.getPixels(mPixels, 0, SIZE, 0, 0, SIZE, SIZE);
+
+        int used = 0;
+        for (int pixel : mPixels) {
+            if (Color.alpha(pixel) < MIN_ALPHA) {
+                continue;
+            }
+            final int bucket = PerceptualPalette.quantize(pixel);
+            if (mHistogram[bucket]++ == 0) {
+                mColors[used++] = bucket;
+            }
+        }
+
+        int count = 0;
+        for (int i = 0; i < used; i++) {
+            final int bucket = mColors[i];
+            if (isFiltered(approximate(red(bucket), green(bucket), blue(bucket)))) {
+                mHistogram[bucket] = 0;
+            } else {
+                mColors[count++] = bucket;
+            }
+        }
+        Arrays.sort(mColors, 0, count);
+
+        cluster(count);
+        final int dominant = generateSwatches();
+        for (int i = 0; i < count; i++) {
+            mHistogram[mColors[i]] = 0;
+        }
+
+        int color = dominant >= 0
+                ? mPalette.findNearestColor(mSwatchColors[dominant]) : Color.BLACK;
+        if (color == Color.BLACK || color == Color.WHITE) {
+            // Palette's vibrant color defaults to white
+            color = mPalette.findNearestColor(findVibrantColor(Color.WHITE));
+        }
+        return color;
+    }
+
+    private void render(Drawable drawable) {
+        mBitmap.eraseColor(Color.TRANSPARENT);
+        if (drawable instanceof BitmapDrawable) {
+            final Bitmap bitmap = ((BitmapDrawable) drawable).getBitmap();
+            if (bitmap != null) {
+                mCanvas.drawBitmap(bitmap, null, mDst, mPaint);
+            }
+        } else {
+            // Don't leave the drawable with our bounds
+            drawable.copyBounds(mBounds);
+            drawable.setBounds(mDst);
+            drawable.draw(mCanvas);
+            drawable.setBounds(mBounds);
+        }
+    }
+
+    /**
+     * Median cut of the first {@code count} colors, splitting the largest
+     * cluster at the median of its longest dimension like Palette does.
+     */
+    private void cluster(int count) {
+        mClusterCount = 0;
+        if (count <= MAX_CLUSTERS) {
+            // Few enough colors to use them as they are
+            for (int i = 0; i < count; i++) {
+                mClusterLower[i] = mClusterUpper[i] = i;
+            }
+            mClusterCount = count;
+            return;
+        }
+
+        mClusterLower[0] = 0;
+        mClusterUpper[0] = count - 1;
+        mClusterCount = 1;
+        while (mClusterCount < MAX_CLUSTERS) {
+            int largest = 0;
+            int largestVolume = 0;
+            for (int i = 0; i < mClusterCount; i++) {
+                final int volume = getVolume(i);
+                if (volume > largestVolume) {
+                    largest = i;
+                    largestVolume = volume;
+                }
+            }
+            // Palette stops as well once the largest cluster can't be split
+            if (!split(largest)) {
+                break;
+            }
+        }
+    }
+
+    private int getVolume(int cluster) {
+        int minRed = QUANTIZE_WORD_MASK, maxRed = 0;
+        int minGreen = QUANTIZE_WORD_MASK, maxGreen = 0;
+        int minBlue = QUANTIZE_WORD_MASK, maxBlue = 0;
+        for (int i = mClusterLower[cluster]; i <= mClusterUpper[cluster]; i++) {
+            final int color = mColors[i];
+            minRed = Math.min(minRed, red(color));
+            maxRed = Math.max(maxRed, red(color));
+            minGreen = Math.min(minGreen, green(color));
+            maxGreen = Math.max(maxGreen, green(color));
+            minBlue = Math.min(minBlue, blue(color));
+            maxBlue = Math.max(maxBlue, blue(color));
+        }
+        return (maxRed - minRed + 1) * (maxGreen - minGreen + 1) * (maxBlue - minBlue + 1);
+    }
+
+    /**
+     * @return false if the median is the last color, which leaves nothing to split off
+     */
+    private boolean split(int cluster) {
+        final int lower = mClusterLower[cluster];
+        final int upper = mClusterUpper[cluster];
+        if (lower == upper) {
+            return false;
+        }
+
+        int minRed = QUANTIZE_WORD_MASK, maxRed = 0;
+        int minGreen = QUANTIZE_WORD_MASK, maxGreen = 0;
+        int minBlue = QUANTIZE_WORD_MASK, maxBlue = 0;
+        int population = 0;
+        for (int i = lower; i <= upper; i++) {
+            final int color = mColors[i];
+            population += mHistogram[color];
+            minRed = Math.min(minRed, red(color));
+            maxRed = Math.max(maxRed, red(color));
+            minGreen = Math.min(minGreen, green(color));
+            maxGreen = Math.max(maxGreen, green(color));
+            minBlue = Math.min(minBlue, blue(color));
+            maxBlue = Math.max(maxBlue, blue(color));
+        }
+
+        // Sort with the longest dimension moved to the most significant word
+        final int redLength = maxRed - minRed;
+        final int greenLength = maxGreen - minGreen;
+        final int blueLength = maxBlue - minBlue;
+        final int dimension = redLength >= greenLength && redLength >= blueLength ? 0
+                : greenLength >= blueLength ? 1 : 2;
+        swapDimension(lower, upper, dimension);
+        Arrays.sort(mColors, lower, upper + 1);
+        swapDimension(lower, upper, dimension);
+
+        int splitPoint = lower;
+        for (int i = lower, count = 0; i <= upper; i++) {
+            count += mHistogram[mColors[i]];
+            if (count >= population / 2) {
+                splitPoint = i;
+                break;
+            }
+        }
+        if (splitPoint == upper) {
+            return false;
+        }
+
+        mClusterUpper[cluster] = splitPoint;
+        mClusterLower[mClusterCount] = splitPoint + 1;
+        mClusterUpper[mClusterCount] = upper;
+        mClusterCount++;
+        return true;
+    }
+
+    private void swapDimension(int lower, int upper, int dimension) {
+        for (int i = lower; i <= upper; i++) {
+            final int color = mColors[i];
+            if (dimension == 1) {
+                mColors[i] = pack(green(color), red(color), blue(color));
+            } else if (dimension == 2) {
+                mColors[i] = pack(blue(color), green(color), red(color));
+            }
+        }
+    }
+
+    /**
+     * Average the clusters into swatches, dropping the filtered ones.
+     *
+     * @return the index of the most populated swatch, or -1 if there is none
+     */
+    private int generateSwatches() {
+        mSwatchCount = 0;
+        int dominant = -1;
+        for (int i = 0; i < mClusterCount; i++) {
+            int redSum = 0;
+            int greenSum = 0;
+            int blueSum = 0;
+            int population = 0;
+            for (int j = mClusterLower[i]; j <= mClusterUpper[i]; j++) {
+                final int color = mColors[j];
+                final int colorPopulation = mHistogram[color];
+                population += colorPopulation;
+                redSum += colorPopulation * red(color);
+                greenSum += colorPopulation * green(color);
+                blueSum += colorPopulation * blue(color);
+            }
+
+            final int rgb = approximate(Math.round(redSum / (float) population),
+                    Math.round(greenSum / (float) population),
+                    Math.round(blueSum / (float) population));
+            if (isFiltered(rgb)) {
+                continue;
+            }
+            if (dominant < 0 || population > mSwatchPopulations[dominant]) {
+                dominant = mSwatchCount;
+            }
+            mSwatchColors[mSwatchCount] = rgb;
+            mSwatchPopulations[mSwatchCount] = population;
+            mSwatchCount++;
+        }
+        return dominant;
+    }
+
+    /**
+     * @return the vibrant color as picked by Palette's default generator, falling back to
+     *         the dark vibrant color at normal luma
+     */
+    private int findVibrantColor(int defaultColor) {
+        int vibrant = findVibrantSwatch(TARGET_VIBRANT_LUMA, MIN_VIBRANT_LUMA, MAX_VIBRANT_LUMA);
+        if (vibrant >= 0) {
+            return mSwatchColors[vibrant];
+        }
+        vibrant = findVibrantSwatch(TARGET_DARK_VIBRANT_LUMA, 0f, MAX_DARK_VIBRANT_LUMA);
+        if (vibrant >= 0) {
+            lineageos.util.palette.ColorUtils.colorToHSL(mSwatchColors[vibrant], mHsl);
+            mHsl[2] = TARGET_VIBRANT_LUMA;
+            return lineageos.util.palette.ColorUtils.HSLToColor(mHsl);
+        }
+        return defaultColor;
+    }
+
+    private int findVibrantSwatch(float targetLuma, float minLuma, float maxLuma) {
+        int maxPopulation = 0;
+        for (int i = 0; i < mSwatchCount; i++) {
+            maxPopulation = Math.max(maxPopulation, mSwatchPopulations[i]);
+        }
+
+        int best = -1;
+        float bestValue = 0f;
+        for (int i = 0; i < mSwatchCount; i++) {
+            lineageos.util.palette.ColorUtils.colorToHSL(mSwatchColors[i], mHsl);
+            final float sat = mHsl[1];
+            final float luma = mHsl[2];
+            if (sat < MIN_VIBRANT_SATURATION || luma < minLuma || luma > maxLuma) {
+                continue;
+            }
+            // Weighted like the default generator: saturation 3, luma 6, population 1
+            final float value = ((1f - Math.abs(sat - 1f)) * 3f
+                    + (1f - Math.abs(luma - targetLuma)) * 6f
+                    + mSwatchPopulations[i] / (float) maxPopulation) / 10f;
+            if (best < 0 || value > bestValue) {
+                best = i;
+                bestValue = value;
+            }
+        }
+        return best;
+    }
+
+    private boolean isFiltered(int rgb) {
+        lineageos.util.palette.ColorUtils.colorToHSL(rgb, mHsl);
+        return mHsl[2] <= BLACK_MAX_LIGHTNESS || mHsl[2] >= WHITE_MIN_LIGHTNESS
+                || (mHsl[0] >= 10f && mHsl[0] <= 37f && mHsl[1] <= 0.82f);
+    }
+
+    private static int red(int color) {
+        return (color >> (2 * QUANTIZE_WORD_WIDTH)) & QUANTIZE_WORD_MASK;
+    }
+
+    private static int green(int color) {
+        return (color >> QUANTIZE_WORD_WIDTH) & QUANTIZE_WORD_MASK;
+    }
+
+    private static int blue(int color) {
+        return color & QUANTIZE_WORD_MASK;
+    }
+
+    private static int pack(int r, int g, int b) {
+        return (r << (2 * QUANTIZE_WORD_WIDTH)) | (g << QUANTIZE_WORD_WIDTH) | b;
+    }
+
+    /**
+     * @return the RGB888 color of the 5-bit components, widened like Palette does
+     */
+    private static int approximate(int r, int g, int b) {
+        final int shift = 8 - QUANTIZE_WORD_WIDTH;
+        return Color.rgb(r << shift, g << shift, b << shift);
+    }
+}
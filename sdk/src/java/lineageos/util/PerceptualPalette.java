@@ -0,0 +1,153 @@
+/*
+ * SPDX-FileCopyrightText: 2024 The LineageOS Project
+ * SPDX-License-Identifier: Apache-2.0
+ */
+
+package lineageos.util;
+
+/**
+ * A fixed set of colors which can be searched for the "perceptually nearest"
+ * color to a given RGB value, as done by
+ * {@link ColorUtils#findPerceptuallyNearestColor(int, int[])}.
+ *
+ * The L*a*b values of the colors are computed once, so queries don't
+ * allocate. Optionally the nearest color of every 15-bit RGB value is
+ * computed up front as well, for constant time lookups of the approximate
+ * nearest color.
+ */
+public final class PerceptualPalette {
+
+    private static final int QUANTIZE_WORD_WIDTH = 5;
+    private static final int QUANTIZE_WORD_MASK = (1 << QUANTIZE_WORD_WIDTH) - 1;
+
+    private final int[] mColors;
+    // L, a and b of each color, one after another
+    private final float[] mLab;
+    // Index of the nearest color of each 15-bit RGB value
+    private final byte[] mLookupTable;
+
+    private final float[] mQueryLab = new float[3];
+
+    /**
+     * @param colors the colors to search
+     */
+    public PerceptualPalette(int[] colors) {
+        this(colors, false);
+    }
+
+    /**
+     * @param colors the colors to search, at most 256 if a lookup table is built
+     * @param lookupTable whether to build a lookup table for
+     *                    {@link #lookupNearestColor(int)}
+     */
+    public PerceptualPalette(int[] colors, boolean lookupTable) {
+        if (lookupTable && colors.length > 256) {
+            throw new IllegalArgumentException("Too many colors for a lookup table");
+        }
+
+        mColors = colors.clone();
+        mLab = new float[3 * mColors.length];
+        for (int i = 0; i < mColors.length; i++) {
+            ColorUtils.convertRGBtoLAB(mColors[i], mQueryLab);
+            System.arraycopy(mQueryLab, 0, mLab, 3 * i, 3);
+        }
+
+        if (lookupTable && mColors.length > 0) {
+            mLookupTable = new byte[1 << (3 * QUANTIZE_WORD_WIDTH)];
+            for (int i = 0; i < mLookupTable.length; i++) {
+                mLookupTable[i] = (byte) findNearestIndex(approximate(i));
+            }
+        } else {
+            mLookupTable = null;
+        }
+    }
+
+    /**
+     * @return the number of colors in the palette
+     */
+    public int size() {
+        return mColors.length;
+    }
+
+    /**
+     * @return the color at the given index
+     */
+    public int getColor(int index) {
+        return mColors[index];
+    }
+
+    /**
+     * @param rgb the color to start with
+     * @return the index of the perceptually nearest color, or -1 if the palette is empty
+     */
+    public synchronized int findNearestIndex(int rgb) {
+        ColorUtils.convertRGBtoLAB(rgb, mQueryLab);
+        final float L = mQueryLab[0];
+        final float a = mQueryLab[1];
+        final float b = mQueryLab[2];
+
+        int nearest = -1;
+        double closest = Double.MAX_VALUE;
+        for (int i = 0; i < mColors.length; i++) {
+            double deltaE = ColorUtils.calculateDeltaE(L, a, b,
+                    mLab[3 * i], mLab[3 * i + 1], mLab[3 * i + 2]);
+            if (deltaE < closest) {
+                nearest = i;
+                closest = deltaE;
+            }
+        }
+        return nearest;
+    }
+
+    /**
+     * @param rgb the color to start with
+     * @return the perceptually nearest color, or 0 if the palette is empty
+     */
+    public int findNearestColor(int rgb) {
+        final int index = findNearestIndex(rgb);
+        return index >= 0 ? mColors[index] : 0;
+    }
+
+    /**
+     * Looks up the nearest color of the given color reduced to 15 bits, which
+     * may differ from {@link #findNearestIndex(int)} for colors close to the
+     * middle of two palette colors.
+     *
+     * @param rgb the color to start with
+     * @return the index of the perceptually nearest color, or -1 if the palette is empty
+     * @throws IllegalStateException if the palette was built without a lookup table
+     */
+    public int lookupNearestIndex(int rgb) {
+        if (mColors.length == 0) {
+            return -1;
+        }
+        if (mLookupTable == null) {
+            throw new IllegalStateException("Palette has no lookup table");
+        }
+        return mLookupTable[quantize(rgb)] & 0xff;
+    }
+
+    /**
+     * @param rgb the color to start with
+     * @return the approximate perceptually nearest color, or 0 if the palette is empty
+     * @throws IllegalStateException if the palette was built without a lookup table
+     * @see #lookupNearestIndex(int)
+     */
+    public int lookupNearestColor(int rgb) {
+        final int index = lookupNearestIndex(rgb);
+        return index >= 0 ? mColors[index] : 0;
+    }
+
+    static int quantize(int rgb) {
+        return (((rgb >> 19) & QUANTIZE_WORD_MASK) << (2 * QUANTIZE_WORD_WIDTH))
+                | (((rgb >> 11) & QUANTIZE_WORD_MASK) << QUANTIZE_WORD_WIDTH)
+                | ((rgb >> 3) & QUANTIZE_WORD_MASK);
+    }
+
+    static int approximate(int quantized) {
+        final int r = (quantized >> (2 * QUANTIZE_WORD_WIDTH)) & QUANTIZE_WORD_MASK;
+        final int g = (quantized >> QUANTIZE_WORD_WIDTH) & QUANTIZE_WORD_MASK;
+        final int b = quantized & QUANTIZE_WORD_MASK;
+        return 0xff000000 | (r << 3 | r >> 2) << 16 | (g << 3 | g >> 2) << 8 | (b << 3 | b >> 2);
+    }
+}
@@ -6,16 +6,16 @@
 package lineageos.util.palette;
 
 import android.graphics.Color;
+import android.os.CancellationSignal;
 import android.util.TimingLogger;
 
 import lineageos.util.palette.Palette.Swatch;
 
 import java.util.ArrayList;
 import java.util.Arrays;
-import java.util.Collection;
-import java.util.Comparator;
 import java.util.List;
-import java.util.PriorityQueue;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
 
 /**
  * An color quantizer based on the Median-cut algorithm, but optimized for picking out distinct
@@ -42,33 +42,73 @@ final class ColorCutQuantizer {
     private static final int QUANTIZE_WORD_WIDTH = 5;
     private static final int QUANTIZE_WORD_MASK = (1 << QUANTIZE_WORD_WIDTH) - 1;
 
+    // Images with more pixels than this have their histogram built in parallel. Each task
+    // allocates its own histogram, so the tasks shouldn't be much smaller than this either.
+    private static final int PARALLEL_HISTOGRAM_THRESHOLD = 1 << 16;
+
     final int[] mColors;
     final int[] mHistogram;
     final List<Swatch> mQuantizedColors;
     final TimingLogger mTimingLogger;
     final Palette.Filter[] mFilters;
+    final CancellationSignal mCancellationSignal;
 
     private final float[] mTempHsl = new float[3];
 
+    // The boxes and the queue of boxes to split, only allocated if the colors need to be
+    // quantized. The boxes are stored in parallel arrays, indexed by box.
+    private int[] mBoxLower;
+    private int[] mBoxUpper;
+    private int[] mBoxPopulation;
+    private int[] mBoxMinRed, mBoxMaxRed;
+    private int[] mBoxMinGreen, mBoxMaxGreen;
+    private int[] mBoxMinBlue, mBoxMaxBlue;
+    private int[] mQueue;
+    private int mQueueSize;
+
+    // Scratch space for sorting the colors of a box
+    private int[] mSortBuffer;
+    private final int[] mSortOffsets = new int[(1 << QUANTIZE_WORD_WIDTH) + 1];
+
     /**
      * Constructor.
      *
      * @param pixels histogram representing an image's pixel data
      * @param maxColors The maximum number of colors that should be in the result palette.
      * @param filters Set of filters to use in the quantization stage
+     * @param cancellationSignal signal to stop quantization early, may be null
+     * @throws android.os.OperationCanceledException if quantization was canceled
+     */
+    ColorCutQuantizer(final int[] pixels, final int maxColors, final Palette.Filter[] filters,
+            final CancellationSignal cancellationSignal) {
+        this(createHistogram(pixels, cancellationSignal), maxColors, filters, cancellationSignal,
+                LOG_TIMINGS ? new TimingLogger(LOG_TAG, "Creation") : null);
+    }
+
+    /**
+     * Create a quantizer from a histogram filled in with {@link #addToHistogram}.
+     *
+     * @param histogram the populations of the quantized colors, which will be modified
+     * @param maxColors The maximum number of colors that should be in the result palette.
+     * @param filters Set of filters to use in the quantization stage
+     * @param cancellationSignal signal to stop quantization early, may be null
+     * @throws android.os.OperationCanceledException if quantization was canceled
      */
-    ColorCutQuantizer(final int[] pixels, final int maxColors, final Palette.Filter[] filters) {
-        mTimingLogger = LOG_TIMINGS ? new TimingLogger(LOG_TAG, "Creation") : null;
+    static ColorCutQuantizer fromHistogram(final int[] histogram, final int maxColors,
+            final Palette.Filter[] filters, final CancellationSignal cancellationSignal) {
+        return new ColorCutQuantizer(histogram, maxColors, filters, cancellationSignal,
+                LOG_TIMINGS ? new TimingLogger(LOG_TAG, "Creation") : null);
+    }
+
+    private ColorCutQuantizer(final int[] histogram, final int maxColors,
+            final Palette.Filter[] filters, final CancellationSignal cancellationSignal,
+            final TimingLogger timingLogger) {
+        mTimingLogger = timingLogger;
         mFilters = filters;
+        mCancellationSignal = cancellationSignal;
+        throwIfCanceled();
 
-        final int[] hist = mHistogram = new int[1 << (QUANTIZE_WORD_WIDTH * 3)];
-        for (int i = 0; i < pixels.length; i++) {
-            final int quantizedColor = quantizeFromRgb888(pixels[i]);
-            // Now update the pixel value to the quantized value
-            pixels[i] = quantizedColor;
-            // And update the histogram
-            hist[quantizedColor]++;
-        }
+        final int[] hist = mHistogram = histogram;
 
         if (LOG_TIMINGS) {
             mTimingLogger.addSplit("Histogram created");
@@ -90,6 +130,7 @@ final class ColorCutQuantizer {
         if (LOG_TIMINGS) {
             mTimingLogger.addSplit("Filtered colors and distinct colors counted");
         }
+        throwIfCanceled();
 
         // Now lets go through create an array consisting of only distinct colors
         final int[] colors = mColors = new int[distinctColorCount];
@@ -126,6 +167,94 @@ final class ColorCutQuantizer {
         }
     }
 
+    /**
+     * @return a new, empty histogram of quantized colors
+     */
+    static int[] newHistogram() {
+        return new int[1 << (QUANTIZE_WORD_WIDTH * 3)];
+    }
+
+    /**
+     * Add {@code count} pixels of the given RGB888 color to the histogram.
+     */
+    static void addToHistogram(final int[] hist, final int color, final int count) {
+        hist[quantizeFromRgb888(color)] += count;
+    }
+
+    private static int[] createHistogram(final int[] pixels,
+            final CancellationSignal cancellationSignal) {
+        final int parallelism = ForkJoinPool.getCommonPoolParallelism();
+        if (pixels.length > PARALLEL_HISTOGRAM_THRESHOLD && parallelism > 1) {
+            final int chunkSize = Math.max(PARALLEL_HISTOGRAM_THRESHOLD / 2,
+                    (pixels.length + parallelism - 1) / parallelism);
+            return ForkJoinPool.commonPool().invoke(
+                    new HistogramTask(pixels, 0, pixels.length, chunkSize, cancellationSignal));
+        }
+
+        final int[] hist = newHistogram();
+        buildHistogram(pixels, 0, pixels.length, hist);
+        return hist;
+    }
+
+    /**
+     * Quantizes the pixels in the given range in place and adds them to the histogram.
+     */
+    private static void buildHistogram(final int[] pixels, final int start, final int end,
+            final int[] hist) {
+        for (int i = start; i < end; i++) {
+            final int quantizedColor = quantizeFromRgb888(pixels[i]);
+            // Now update the pixel value to the quantized value
+            pixels[i] = quantizedColor;
+            // And update the histogram
+            hist[quantizedColor]++;
+        }
+    }
+
+    /**
+     * Builds the histogram of a range of pixels by splitting it into chunks, each counted into
+     * its own histogram, which are summed up once the chunks are done.
+     */
+    private static final class HistogramTask extends RecursiveTask<int[]> {
+        private final int[] mPixels;
+        private final int mStart;
+        private final int mEnd;
+        private final int mChunkSize;
+        private final CancellationSignal mCancellationSignal;
+
+        HistogramTask(int[] pixels, int start, int end, int chunkSize,
+                CancellationSignal cancellationSignal) {
+            mPixels = pixels;
+            mStart = start;
+            mEnd = end;
+            mChunkSize = chunkSize;
+            mCancellationSignal = cancellationSignal;
+        }
+
+        @Override
+        protected int[] compute() {
+            if (mEnd - mStart <= mChunkSize) {
+                if (mCancellationSignal != null) {
+                    mCancellationSignal.throwIfCanceled();
+                }
+                final int[] hist = newHistogram();
+                buildHistogram(mPixels, mStart, mEnd, hist);
+                return hist;
+            }
+
+            final int middle = (mStart + mEnd) >>> 1;
+            final HistogramTask upper = new HistogramTask(mPixels, middle, mEnd, mChunkSize,
+                    mCancellationSignal);
+            upper.fork();
+            final int[] hist = new HistogramTask(mPixels, mStart, middle, mChunkSize,
+                    mCancellationSignal).compute();
+            final int[] upperHist = upper.join();
+            for (int i = 0; i < hist.length; i++) {
+                hist[i] += upperHist[i];
+            }
+            return hist;
+        }
+    }
+
     /**
      * @return the list of quantized colors
      */
@@ -134,43 +263,55 @@ final class ColorCutQuantizer {
     }
 
     private List<Swatch> quantizePixels(int maxColors) {
-        // Create the priority queue which is sorted by volume descending. This means we always
-        // split the largest box in the queue
-        final PriorityQueue<Vbox> pq = new PriorityQueue<>(maxColors, VBOX_COMPARATOR_VOLUME);
+        mBoxLower = new int[maxColors];
+        mBoxUpper = new int[maxColors];
+        mBoxPopulation = new int[maxColors];
+        mBoxMinRed = new int[maxColors];
+        mBoxMaxRed = new int[maxColors];
+        mBoxMinGreen = new int[maxColors];
+        mBoxMaxGreen = new int[maxColors];
+        mBoxMinBlue = new int[maxColors];
+        mBoxMaxBlue = new int[maxColors];
+        mQueue = new int[maxColors];
+        mSortBuffer = new int[mColors.length];
 
         // To start, offer a box which contains all of the colors
-        pq.offer(new Vbox(0, mColors.length - 1));
+        mBoxLower[0] = 0;
+        mBoxUpper[0] = mColors.length - 1;
+        fitBox(0);
+        offerBox(0);
 
         // Now go through the boxes, splitting them until we have reached maxColors or there are no
         // more boxes to split
-        splitBoxes(pq, maxColors);
+        splitBoxes(maxColors);
 
         // Finally, return the average colors of the color boxes
-        return generateAverageColors(pq);
+        return generateAverageColors();
     }
 
     /**
-     * Iterate through the {@link java.util.Queue}, popping
-     * {@link ColorCutQuantizer.Vbox} objects from the queue
-     * and splitting them. Once split, the new box and the remaining box are offered back to the
-     * queue.
+     * Iterate through the queue, polling boxes from the queue and splitting them. Once split,
+     * the new box and the remaining box are offered back to the queue.
      *
-     * @param queue {@link java.util.PriorityQueue} to poll for boxes
      * @param maxSize Maximum amount of boxes to split
      */
-    private void splitBoxes(final PriorityQueue<Vbox> queue, final int maxSize) {
-        while (queue.size() < maxSize) {
-            final Vbox vbox = queue.poll();
+    private void splitBoxes(final int maxSize) {
+        int boxCount = 1;
+        while (mQueueSize < maxSize) {
+            throwIfCanceled();
+            final int box = pollBox();
 
-            if (vbox != null && vbox.canSplit()) {
+            if (box >= 0 && canSplitBox(box)) {
                 // First split the box, and offer the result
-                queue.offer(vbox.splitBox());
+                final int newBox = boxCount++;
+                splitBox(box, newBox);
+                offerBox(newBox);
 
                 if (LOG_TIMINGS) {
                     mTimingLogger.addSplit("Box split");
                 }
                 // Then offer the box back
-                queue.offer(vbox);
+                offerBox(box);
             } else {
                 if (LOG_TIMINGS) {
                     mTimingLogger.addSplit("All boxes split");
@@ -181,10 +322,10 @@ final class ColorCutQuantizer {
         }
     }
 
-    private List<Swatch> generateAverageColors(Collection<Vbox> vboxes) {
-        ArrayList<Swatch> colors = new ArrayList<>(vboxes.size());
-        for (Vbox vbox : vboxes) {
-            Swatch swatch = vbox.getAverageColor();
+    private List<Swatch> generateAverageColors() {
+        ArrayList<Swatch> colors = new ArrayList<>(mQueueSize);
+        for (int i = 0; i < mQueueSize; i++) {
+            Swatch swatch = getAverageColor(mQueue[i]);
             if (!shouldIgnoreColor(swatch)) {
                 // As we're averaging a color box, we can still get colors which we do not want, so
                 // we check again here
@@ -194,223 +335,289 @@ final class ColorCutQuantizer {
         return colors;
     }
 
-    /**
-     * Represents a tightly fitting box around a color space.
+    /*
+     * The queue is a binary heap of box indexes, sorted by volume descending, so we always
+     * split the largest box. Ties are broken the same way as with a PriorityQueue.
      */
-    private class Vbox {
-        // lower and upper index are inclusive
-        private int mLowerIndex;
-        private int mUpperIndex;
-        // Population of colors within this box
-        private int mPopulation;
-
-        private int mMinRed, mMaxRed;
-        private int mMinGreen, mMaxGreen;
-        private int mMinBlue, mMaxBlue;
-
-        Vbox(int lowerIndex, int upperIndex) {
-            mLowerIndex = lowerIndex;
-            mUpperIndex = upperIndex;
-            fitBox();
-        }
-
-        final int getVolume() {
-            return (mMaxRed - mMinRed + 1) * (mMaxGreen - mMinGreen + 1) *
-                    (mMaxBlue - mMinBlue + 1);
-        }
 
-        final boolean canSplit() {
-            return getColorCount() > 1;
+    private void offerBox(int box) {
+        final int[] queue = mQueue;
+        int k = mQueueSize++;
+        while (k > 0) {
+            final int parent = (k - 1) >>> 1;
+            if (compareBoxes(box, queue[parent]) >= 0) {
+                break;
+            }
+            queue[k] = queue[parent];
+            k = parent;
         }
+        queue[k] = box;
+    }
 
-        final int getColorCount() {
-            return 1 + mUpperIndex - mLowerIndex;
+    /**
+     * @return the largest box, or -1 if the queue is empty
+     */
+    private int pollBox() {
+        if (mQueueSize == 0) {
+            return -1;
         }
-
-        /**
-         * Recomputes the boundaries of this box to tightly fit the colors within the box.
-         */
-        final void fitBox() {
-            final int[] colors = mColors;
-            final int[] hist = mHistogram;
-
-            // Reset the min and max to opposite values
-            int minRed, minGreen, minBlue;
-            minRed = minGreen = minBlue = Integer.MAX_VALUE;
-            int maxRed, maxGreen, maxBlue;
-            maxRed = maxGreen = maxBlue = Integer.MIN_VALUE;
-            int count = 0;
-
-            for (int i = mLowerIndex; i <= mUpperIndex; i++) {
-                final int color = colors[i];
-                count += hist[color];
-
-                final int r = quantizedRed(color);
-                final int g = quantizedGreen(color);
-                final int b = quantizedBlue(color);
-                if (r > maxRed) {
-                    maxRed = r;
-                }
-                if (r < minRed) {
-                    minRed = r;
+        final int[] queue = mQueue;
+        final int result = queue[0];
+        final int n = --mQueueSize;
+        if (n > 0) {
+            final int box = queue[n];
+            final int half = n >>> 1;
+            int k = 0;
+            while (k < half) {
+                int child = (k << 1) + 1;
+                final int right = child + 1;
+                if (right < n && compareBoxes(queue[child], queue[right]) > 0) {
+                    child = right;
                 }
-                if (g > maxGreen) {
-                    maxGreen = g;
-                }
-                if (g < minGreen) {
-                    minGreen = g;
-                }
-                if (b > maxBlue) {
-                    maxBlue = b;
-                }
-                if (b < minBlue) {
-                    minBlue = b;
+                if (compareBoxes(box, queue[child]) <= 0) {
+                    break;
                 }
+                queue[k] = queue[child];
+                k = child;
             }
-
-            mMinRed = minRed;
-            mMaxRed = maxRed;
-            mMinGreen = minGreen;
-            mMaxGreen = maxGreen;
-            mMinBlue = minBlue;
-            mMaxBlue = maxBlue;
-            mPopulation = count;
+            queue[k] = box;
         }
+        return result;
+    }
 
-        /**
-         * Split this color box at the mid-point along it's longest dimension
-         *
-         * @return the new ColorBox
-         */
-        final Vbox splitBox() {
-            if (!canSplit()) {
-                throw new IllegalStateException("Can not split a box with only 1 color");
-            }
-
-            // find median along the longest dimension
-            final int splitPoint = findSplitPoint();
+    private int compareBoxes(int lhs, int rhs) {
+        return getBoxVolume(rhs) - getBoxVolume(lhs);
+    }
 
-            Vbox newBox = new Vbox(splitPoint + 1, mUpperIndex);
+    /*
+     * Each box is a tightly fitting box around a color space.
+     */
 
-            // Now change this box's upperIndex and recompute the color boundaries
-            mUpperIndex = splitPoint;
-            fitBox();
+    private int getBoxVolume(int box) {
+        return (mBoxMaxRed[box] - mBoxMinRed[box] + 1)
+                * (mBoxMaxGreen[box] - mBoxMinGreen[box] + 1)
+                * (mBoxMaxBlue[box] - mBoxMinBlue[box] + 1);
+    }
 
-            return newBox;
-        }
+    private boolean canSplitBox(int box) {
+        // lower and upper index are inclusive
+        return mBoxUpper[box] > mBoxLower[box];
+    }
 
-        /**
-         * @return the dimension which this box is largest in
-         */
-        final int getLongestColorDimension() {
-            final int redLength = mMaxRed - mMinRed;
-            final int greenLength = mMaxGreen - mMinGreen;
-            final int blueLength = mMaxBlue - mMinBlue;
-
-            if (redLength >= greenLength && redLength >= blueLength) {
-                return COMPONENT_RED;
-            } else if (greenLength >= redLength && greenLength >= blueLength) {
-                return COMPONENT_GREEN;
-            } else {
-                return COMPONENT_BLUE;
+    /**
+     * Recomputes the boundaries of the box to tightly fit the colors within the box.
+     */
+    private void fitBox(int box) {
+        final int[] colors = mColors;
+        final int[] hist = mHistogram;
+
+        // Reset the min and max to opposite values
+        int minRed, minGreen, minBlue;
+        minRed = minGreen = minBlue = Integer.MAX_VALUE;
+        int maxRed, maxGreen, maxBlue;
+        maxRed = maxGreen = maxBlue = Integer.MIN_VALUE;
+        int count = 0;
+
+        for (int i = mBoxLower[box], upper = mBoxUpper[box]; i <= upper; i++) {
+            final int color = colors[i];
+            count += hist[color];
+
+            final int r = quantizedRed(color);
+            final int g = quantizedGreen(color);
+            final int b = quantizedBlue(color);
+            if (r > maxRed) {
+                maxRed = r;
+            }
+            if (r < minRed) {
+                minRed = r;
+            }
+            if (g > maxGreen) {
+                maxGreen = g;
+            }
+            if (g < minGreen) {
+                minGreen = g;
+            }
+            if (b > maxBlue) {
+                maxBlue = b;
+            }
+            if (b < minBlue) {
+                minBlue = b;
             }
         }
 
-        /**
-         * Finds the point within this box's lowerIndex and upperIndex index of where to split.
-         *
-         * This is calculated by finding the longest color dimension, and then sorting the
-         * sub-array based on that dimension value in each color. The colors are then iterated over
-         * until a color is found with at least the midpoint of the whole box's dimension midpoint.
-         *
-         * @return the index of the colors array to split from
-         */
-        final int findSplitPoint() {
-            final int longestDimension = getLongestColorDimension();
-            final int[] colors = mColors;
-            final int[] hist = mHistogram;
-
-            // We need to sort the colors in this box based on the longest color dimension.
-            // As we can't use a Comparator to define the sort logic, we modify each color so that
-            // it's most significant is the desired dimension
-            modifySignificantOctet(colors, longestDimension, mLowerIndex, mUpperIndex);
-
-            // Now sort... Arrays.sort uses a exclusive toIndex so we need to add 1
-            Arrays.sort(colors, mLowerIndex, mUpperIndex + 1);
-
-            // Now revert all of the colors so that they are packed as RGB again
-            modifySignificantOctet(colors, longestDimension, mLowerIndex, mUpperIndex);
-
-            final int midPoint = mPopulation / 2;
-            for (int i = mLowerIndex, count = 0; i <= mUpperIndex; i++)  {
-                count += hist[colors[i]];
-                if (count >= midPoint) {
-                    return i;
-                }
-            }
+        mBoxMinRed[box] = minRed;
+        mBoxMaxRed[box] = maxRed;
+        mBoxMinGreen[box] = minGreen;
+        mBoxMaxGreen[box] = maxGreen;
+        mBoxMinBlue[box] = minBlue;
+        mBoxMaxBlue[box] = maxBlue;
+        mBoxPopulation[box] = count;
+    }
 
-            return mLowerIndex;
+    /**
+     * Split the box at the mid-point along it's longest dimension, keeping the lower half and
+     * storing the upper half as {@code newBox}.
+     */
+    private void splitBox(int box, int newBox) {
+        if (!canSplitBox(box)) {
+            throw new IllegalStateException("Can not split a box with only 1 color");
         }
 
-        /**
-         * @return the average color of this box.
-         */
-        final Swatch getAverageColor() {
-            final int[] colors = mColors;
-            final int[] hist = mHistogram;
-            int redSum = 0;
-            int greenSum = 0;
-            int blueSum = 0;
-            int totalPopulation = 0;
-
-            for (int i = mLowerIndex; i <= mUpperIndex; i++) {
-                final int color = colors[i];
-                final int colorPopulation = hist[color];
-
-                totalPopulation += colorPopulation;
-                redSum += colorPopulation * quantizedRed(color);
-                greenSum += colorPopulation * quantizedGreen(color);
-                blueSum += colorPopulation * quantizedBlue(color);
-            }
+        // find median along the longest dimension
+        final int splitPoint = findSplitPoint(box);
 
-            final int redMean = Math.round(redSum / (float) totalPopulation);
-            final int greenMean = Math.round(greenSum / (float) totalPopulation);
-            final int blueMean = Math.round(blueSum / (float) totalPopulation);
+        mBoxLower[newBox] = splitPoint + 1;
+        mBoxUpper[newBox] = mBoxUpper[box];
+        fitBox(newBox);
+
+        // Now change this box's upperIndex and recompute the color boundaries
+        mBoxUpper[box] = splitPoint;
+        fitBox(box);
+    }
 
-            return new Swatch(approximateToRgb888(redMean, greenMean, blueMean), totalPopulation);
+    /**
+     * @return the dimension which the box is largest in
+     */
+    private int getLongestColorDimension(int box) {
+        final int redLength = mBoxMaxRed[box] - mBoxMinRed[box];
+        final int greenLength = mBoxMaxGreen[box] - mBoxMinGreen[box];
+        final int blueLength = mBoxMaxBlue[box] - mBoxMinBlue[box];
+
+        if (redLength >= greenLength && redLength >= blueLength) {
+            return COMPONENT_RED;
+        } else if (greenLength >= redLength && greenLength >= blueLength) {
+            return COMPONENT_GREEN;
+        } else {
+            return COMPONENT_BLUE;
         }
     }
 
     /**
-     * Modify the significant octet in a packed color int. Allows sorting based on the value of a
-     * single color component. This relies on all components being the same word size.
+     * Finds the point within the box's lowerIndex and upperIndex index of where to split.
+     *
+     * This is calculated by finding the longest color dimension, and then sorting the
+     * sub-array based on that dimension value in each color, then on the other two. The colors
+     * are then iterated over until a color is found with at least the midpoint of the whole
+     * box's dimension midpoint.
      *
-     * @see Vbox#findSplitPoint()
+     * @return the index of the colors array to split from
      */
-    private static void modifySignificantOctet(final int[] a, final int dimension,
-            final int lower, final int upper) {
-        switch (dimension) {
+    private int findSplitPoint(int box) {
+        final int longestDimension = getLongestColorDimension(box);
+        final int[] colors = mColors;
+        final int[] hist = mHistogram;
+        final int lower = mBoxLower[box];
+        final int upper = mBoxUpper[box];
+
+        // Radix sort the colors one component at a time, least significant first, so they end
+        // up sorted as if the longest dimension were the most significant octet
+        switch (longestDimension) {
             case COMPONENT_RED:
-                // Already in RGB, no need to do anything
+                sortByComponent(COMPONENT_BLUE, box);
+                sortByComponent(COMPONENT_GREEN, box);
+                sortByComponent(COMPONENT_RED, box);
                 break;
             case COMPONENT_GREEN:
-                // We need to do a RGB to GRB swap, or vice-versa
-                for (int i = lower; i <= upper; i++) {
-                    final int color = a[i];
-                    a[i] = quantizedGreen(color) << (QUANTIZE_WORD_WIDTH + QUANTIZE_WORD_WIDTH)
-                            | quantizedRed(color) << QUANTIZE_WORD_WIDTH
-                            | quantizedBlue(color);
-                }
+                sortByComponent(COMPONENT_BLUE, box);
+                sortByComponent(COMPONENT_RED, box);
+                sortByComponent(COMPONENT_GREEN, box);
                 break;
             case COMPONENT_BLUE:
-                // We need to do a RGB to BGR swap, or vice-versa
-                for (int i = lower; i <= upper; i++) {
-                    final int color = a[i];
-                    a[i] = quantizedBlue(color) << (QUANTIZE_WORD_WIDTH + QUANTIZE_WORD_WIDTH)
-                            | quantizedGreen(color) << QUANTIZE_WORD_WIDTH
-                            | quantizedRed(color);
+                sortByComponent(COMPONENT_RED, box);
+                sortByComponent(COMPONENT_GREEN, box);
+                sortByComponent(COMPONENT_BLUE, box);
+                break;
+        }
+
+        final int midPoint = mBoxPopulation[box] / 2;
+        for (int i = lower, count = 0; i <= upper; i++)  {
+            count += hist[colors[i]];
+            if (count >= midPoint) {
+                return i;
+            }
+        }
+
+        return lower;
+    }
+
+    /**
+     * Stable counting sort of the box's colors by a single component.
+     */
+    private void sortByComponent(int component, int box) {
+        final int shift;
+        switch (component) {
+            case COMPONENT_RED:
+                if (mBoxMinRed[box] == mBoxMaxRed[box]) {
+                    return;
                 }
+                shift = QUANTIZE_WORD_WIDTH + QUANTIZE_WORD_WIDTH;
                 break;
+            case COMPONENT_GREEN:
+                if (mBoxMinGreen[box] == mBoxMaxGreen[box]) {
+                    return;
+                }
+                shift = QUANTIZE_WORD_WIDTH;
+                break;
+            default:
+                if (mBoxMinBlue[box] == mBoxMaxBlue[box]) {
+                    return;
+                }
+                shift = 0;
+                break;
+        }
+
+        final int[] colors = mColors;
+        final int[] buffer = mSortBuffer;
+        final int[] offsets = mSortOffsets;
+        final int lower = mBoxLower[box];
+        final int upper = mBoxUpper[box];
+
+        Arrays.fill(offsets, 0);
+        for (int i = lower; i <= upper; i++) {
+            offsets[((colors[i] >> shift) & QUANTIZE_WORD_MASK) + 1]++;
+        }
+        offsets[0] = lower;
+        for (int i = 1; i < offsets.length; i++) {
+            offsets[i] += offsets[i - 1];
+        }
+        for (int i = lower; i <= upper; i++) {
+            final int color = colors[i];
+            buffer[offsets[(color >> shift) & QUANTIZE_WORD_MASK]++] = color;
+        }
+        System.arraycopy(buffer, lower, colors, lower, upper - lower + 1);
+    }
+
+    /**
+     * @return the average color of the box.
+     */
+    private Swatch getAverageColor(int box) {
+        final int[] colors = mColors;
+        final int[] hist = mHistogram;
+        int redSum = 0;
+        int greenSum = 0;
+        int blueSum = 0;
+        int totalPopulation = 0;
+
+        for (int i = mBoxLower[box], upper = mBoxUpper[box]; i <= upper; i++) {
+            final int color = colors[i];
+            final int colorPopulation = hist[color];
+
+            totalPopulation += colorPopulation;
+            redSum += colorPopulation * quantizedRed(color);
+            greenSum += colorPopulation * quantizedGreen(color);
+            blueSum += colorPopulation * quantizedBlue(color);
+        }
+
+        final int redMean = Math.round(redSum / (float) totalPopulation);
+        final int greenMean = Math.round(greenSum / (float) totalPopulation);
+        final int blueMean = Math.round(blueSum / (float) totalPopulation);
+
+        return new Swatch(approximateToRgb888(redMean, greenMean, blueMean), totalPopulation);
+    }
+
+    private void throwIfCanceled() {
+        if (mCancellationSignal != null) {
+            mCancellationSignal.throwIfCanceled();
         }
     }
 
@@ -435,16 +642,6 @@ final class ColorCutQuantizer {
         return false;
     }
 
-    /**
-     * Comparator which sorts {@link Vbox} instances based on their volume, in descending order
-     */
-    private static final Comparator<Vbox> VBOX_COMPARATOR_VOLUME = new Comparator<Vbox>() {
-        @Override
-        public int compare(Vbox lhs, Vbox rhs) {
-            return rhs.getVolume() - lhs.getVolume();
-        }
-    };
-
     /**
      * Quantized a RGB888 value to have a word width of {@value #QUANTIZE_WORD_WIDTH}.
      */
@@ -10,12 +10,19 @@ import android.annotation.Nullable;
 import android.graphics.Bitmap;
 import android.graphics.Color;
 import android.os.AsyncTask;
+import android.os.CancellationSignal;
+import android.os.OperationCanceledException;
+import android.util.Log;
 import android.util.TimingLogger;
 
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collections;
 import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
 
 /**
  * A helper class to extract prominent colors from an image.
@@ -430,11 +437,18 @@ public final class Palette {
     public static final class Builder {
         private List<Swatch> mSwatches;
         private Bitmap mBitmap;
+        private int mWidth;
+        private int mHeight;
+        private int[] mHistogram;
+        // How often each column and row is sampled when the image is scaled down
+        private int[] mColumnWeights;
+        private int[] mRowWeights;
         private int mMaxColors = DEFAULT_CALCULATE_NUMBER_COLORS;
         private int mResizeMaxDimension = DEFAULT_RESIZE_BITMAP_MAX_DIMENSION;
         private final List<Filter> mFilters = new ArrayList<>();
 
         private Generator mGenerator;
+        private PaletteCache mCache;
 
         /**
          * Construct a new {@link Builder} using a source {@link Bitmap}
@@ -459,6 +473,22 @@ public final class Palette {
             mSwatches = swatches;
         }
 
+        /**
+         * Construct a new {@link Builder} for an image of the given size, whose pixels are
+         * added incrementally with {@link #addPixels}, for example a tile or a number of
+         * scanlines at a time while the image is being decoded. Only a histogram of the image
+         * is kept, so memory use doesn't depend on the image size.
+         */
+        public Builder(int width, int height) {
+            this();
+            if (width <= 0 || height <= 0) {
+                throw new IllegalArgumentException("Image size is not valid");
+            }
+            mWidth = width;
+            mHeight = height;
+            mHistogram = ColorCutQuantizer.newHistogram();
+        }
+
         private Builder() {
             mFilters.add(DEFAULT_FILTER);
         }
@@ -496,6 +526,9 @@ public final class Palette {
          * more detail is lost in the resulting image and thus less precision for color selection.
          */
         public Builder resizeBitmapSize(int maxDimension) {
+            if (mColumnWeights != null) {
+                throw new IllegalStateException("Pixels have already been added");
+            }
             mResizeMaxDimension = maxDimension;
             return this;
         }
@@ -522,10 +555,100 @@ public final class Palette {
             return this;
         }
 
+        /**
+         * Use the given cache for palettes generated from a {@link Bitmap}. A palette is
+         * returned from the cache if one was generated from the same, unmodified bitmap
+         * with the same parameters and filters.
+         *
+         * @param cache the cache to use, or {@code null} to not cache the palette
+         */
+        public Builder cache(PaletteCache cache) {
+            mCache = cache;
+            return this;
+        }
+
+        /**
+         * Add a region of pixels to the image of a {@link Builder} created with
+         * {@link #Builder(int, int)}. The image is sampled as if it were resized as set with
+         * {@link #resizeBitmapSize(int)}, which can't be changed once pixels have been added.
+         *
+         * @param pixels the colors of the region, as returned by {@link Bitmap#getPixels}
+         * @param offset the index of the first pixel of the region in {@code pixels}
+         * @param stride the number of entries in {@code pixels} between rows
+         * @param x the x coordinate of the region in the image
+         * @param y the y coordinate of the region in the image
+         * @param width the width of the region
+         * @param height the height of the region
+         */
+        public Builder addPixels(int[] pixels, int offset, int stride, int x, int y,
+                int width, int height) {
+            if (mHistogram == null) {
+                throw new IllegalStateException("Builder was not created with an image size");
+            }
+            if (x < 0 || y < 0 || width < 0 || height < 0
+                    || x + width > mWidth || y + height > mHeight) {
+                throw new IllegalArgumentException("Region is outside of the image");
+            }
+
+            if (mColumnWeights == null) {
+                if (mResizeMaxDimension <= 0) {
+                    throw new IllegalArgumentException(
+                            "Minimum dimension size for resizing should should be >= 1");
+                }
+                final int maxDimension = Math.max(mWidth, mHeight);
+                final float scaleRatio = maxDimension <= mResizeMaxDimension
+                        ? 1f : mResizeMaxDimension / (float) maxDimension;
+                mColumnWeights = createSampleWeights(mWidth, scaleRatio);
+                mRowWeights = createSampleWeights(mHeight, scaleRatio);
+            }
+
+            for (int row = 0; row < height; row++) {
+                final int rowWeight = mRowWeights[y + row];
+                if (rowWeight == 0) {
+                    continue;
+                }
+                final int rowOffset = offset + row * stride;
+                for (int column = 0; column < width; column++) {
+                    final int weight = rowWeight * mColumnWeights[x + column];
+                    if (weight > 0) {
+                        ColorCutQuantizer.addToHistogram(mHistogram,
+                                pixels[rowOffset + column], weight);
+                    }
+                }
+            }
+            return this;
+        }
+
+        /**
+         * @return how often each pixel along a dimension is sampled when it is scaled down
+         *         the same way as {@link #scaleBitmapDown}, which doesn't filter
+         */
+        private static int[] createSampleWeights(int size, float scaleRatio) {
+            final int[] weights = new int[size];
+            final int scaledSize = Math.max(1, Math.round(size * scaleRatio));
+            for (int i = 0; i < scaledSize; i++) {
+                weights[Math.min(size - 1, (int) ((i + 0.5f) * size / scaledSize))]++;
+            }
+            return weights;
+        }
+
         /**
          * Generate and return the {@link Palette} synchronously.
          */
         public Palette generate() {
+            return generate(null);
+        }
+
+        private Palette generate(CancellationSignal cancellationSignal) {
+            final boolean useCache = mCache != null && mBitmap != null && mGenerator == null;
+            if (useCache) {
+                final Palette cached = mCache.get(mBitmap, mMaxColors, mResizeMaxDimension,
+                        mFilters);
+                if (cached != null) {
+                    return cached;
+                }
+            }
+
             final TimingLogger logger = LOG_TIMINGS
                     ? new TimingLogger(LOG_TAG, "Generation")
                     : null;
@@ -553,13 +676,28 @@ public final class Palette {
                 final int[] pixels = new int[width * height];
                 scaledBitmap.getPixels(pixels, 0, width, 0, 0, width, height);
 
-                final ColorCutQuantizer quantizer = new ColorCutQuantizer(pixels, mMaxColors,
-                        mFilters.isEmpty() ? null : mFilters.toArray(new Filter[0]));
+                final ColorCutQuantizer quantizer;
+                try {
+                    quantizer = new ColorCutQuantizer(pixels, mMaxColors,
+                            mFilters.isEmpty() ? null : mFilters.toArray(new Filter[0]),
+                            cancellationSignal);
+                } finally {
+                    // If created a new bitmap, recycle it, also if generation was canceled
+                    if (scaledBitmap != mBitmap) {
+                        scaledBitmap.recycle();
+                    }
+                }
+                swatches = quantizer.getQuantizedColors();
 
-                // If created a new bitmap, recycle it
-                if (scaledBitmap != mBitmap) {
-                    scaledBitmap.recycle();
+                if (logger != null) {
+                    logger.addSplit("Color quantization completed");
                 }
+            } else if (mHistogram != null) {
+                // We have the histogram of the added pixels, which the quantizer modifies
+                final ColorCutQuantizer quantizer = ColorCutQuantizer.fromHistogram(
+                        mHistogram.clone(), mMaxColors,
+                        mFilters.isEmpty() ? null : mFilters.toArray(new Filter[0]),
+                        cancellationSignal);
                 swatches = quantizer.getQuantizedColors();
 
                 if (logger != null) {
@@ -584,6 +722,9 @@ public final class Palette {
 
             // Now create a Palette instance
             Palette p = new Palette(swatches, mGenerator);
+            if (useCache) {
+                mCache.put(mBitmap, mMaxColors, mResizeMaxDimension, mFilters, p);
+            }
 
             if (logger != null) {
                 logger.addSplit("Created Palette");
@@ -617,6 +758,64 @@ public final class Palette {
             task.executeOnExecutor(AsyncTask.THREAD_POOL_EXECUTOR, mBitmap);
             return task;
         }
+
+        /**
+         * Generate the {@link Palette} asynchronously on the given executor. The provided
+         * listener's {@link PaletteAsyncListener#onGenerated} method will be called on the
+         * callback executor with the palette when generated, unless generation was canceled
+         * or failed.
+         *
+         * @param executor the executor to generate the palette on
+         * @param callbackExecutor the executor to call the listener on
+         * @return a future for the palette, which stops generation when canceled, also midway
+         *         through quantization
+         */
+        public Future<Palette> generate(final Executor executor, final Executor callbackExecutor,
+                final PaletteAsyncListener listener) {
+            if (executor == null || callbackExecutor == null) {
+                throw new IllegalArgumentException("executor can not be null");
+            }
+            if (listener == null) {
+                throw new IllegalArgumentException("listener can not be null");
+            }
+
+            final CancellationSignal cancellationSignal = new CancellationSignal();
+            final FutureTask<Palette> task = new FutureTask<Palette>(
+                    () -> generate(cancellationSignal)) {
+                @Override
+                public boolean cancel(boolean mayInterruptIfRunning) {
+                    // Cancel the task first, so quantization can't complete it
+                    // exceptionally before it is marked as canceled
+                    if (!super.cancel(mayInterruptIfRunning)) {
+                        return false;
+                    }
+                    cancellationSignal.cancel();
+                    return true;
+                }
+
+                @Override
+                protected void done() {
+                    if (isCancelled()) {
+                        return;
+                    }
+                    final Palette palette;
+                    try {
+                        palette = get();
+                    } catch (ExecutionException e) {
+                        if (!(e.getCause() instanceof OperationCanceledException)) {
+                            Log.w(LOG_TAG, "Failed to generate palette", e);
+                        }
+                        return;
+                    } catch (InterruptedException e) {
+                        Log.w(LOG_TAG, "Failed to generate palette", e);
+                        return;
+                    }
+                    callbackExecutor.execute(() -> listener.onGenerated(palette));
+                }
+            };
+            executor.execute(task);
+            return task;
+        }
     }
 
     static abstract class Generator {
@@ -0,0 +1,136 @@
+/*
+ * SPDX-FileCopyrightText: 2024 The LineageOS Project
+ * SPDX-License-Identifier: Apache-2.0
+ */
+
+package lineageos.util.palette;
+
+import android.graphics.Bitmap;
+import android.util.LruCache;
+
+import java.lang.ref.WeakReference;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Objects;
+
+/**
+ * A bounded cache of generated {@link Palette} instances, for callers which repeatedly
+ * generate palettes of the same bitmaps. Caching is opt-in, see
+ * {@link Palette.Builder#cache(PaletteCache)}.
+ * <p>
+ * Palettes are keyed by the bitmap instance and its {@link Bitmap#getGenerationId()
+ * generation id}, so a modified bitmap gets a new palette, together with the builder's
+ * parameters. Bitmaps aren't kept alive by the cache. Palettes generated from swatches,
+ * added pixels or with a custom generator aren't cached.
+ */
+public final class PaletteCache {
+
+    private final LruCache<Key, Palette> mCache;
+
+    /**
+     * @param maxSize the maximum number of palettes to cache
+     */
+    public PaletteCache(int maxSize) {
+        mCache = new LruCache<>(maxSize);
+    }
+
+    Palette get(Bitmap bitmap, int maxColors, int resizeMaxDimension,
+            List<Palette.Filter> filters) {
+        return mCache.get(new Key(bitmap, maxColors, resizeMaxDimension, filters));
+    }
+
+    void put(Bitmap bitmap, int maxColors, int resizeMaxDimension,
+            List<Palette.Filter> filters, Palette palette) {
+        mCache.put(new Key(bitmap, maxColors, resizeMaxDimension, filters), palette);
+    }
+
+    /**
+     * Remove all cached palettes.
+     */
+    public void evictAll() {
+        mCache.evictAll();
+    }
+
+    /**
+     * @return the number of cached palettes
+     */
+    public int size() {
+        return mCache.size();
+    }
+
+    /**
+     * @return the maximum number of cached palettes
+     */
+    public int maxSize() {
+        return mCache.maxSize();
+    }
+
+    /**
+     * @return the number of times a cached palette was returned
+     */
+    public int hitCount() {
+        return mCache.hitCount();
+    }
+
+    /**
+     * @return the number of times a palette had to be generated
+     */
+    public int missCount() {
+        return mCache.missCount();
+    }
+
+    /**
+     * @return the number of palettes which have been evicted
+     */
+    public int evictionCount() {
+        return mCache.evictionCount();
+    }
+
+    @Override
+    public String toString() {
+        return "PaletteCache[" + mCache + "]";
+    }
+
+    private static final class Key {
+        private final WeakReference<Bitmap> mBitmap;
+        private final int mBitmapHash;
+        private final int mGenerationId;
+        private final int mMaxColors;
+        private final int mResizeMaxDimension;
+        private final List<Palette.Filter> mFilters;
+
+        Key(Bitmap bitmap, int maxColors, int resizeMaxDimension, List<Palette.Filter> filters) {
+            mBitmap = new WeakReference<>(bitmap);
+            mBitmapHash = System.identityHashCode(bitmap);
+            mGenerationId = bitmap.getGenerationId();
+            mMaxColors = maxColors;
+            mResizeMaxDimension = resizeMaxDimension;
+            // Copied as the builder's filters can still change
+            mFilters = new ArrayList<>(filters);
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) {
+                return true;
+            }
+            if (!(o instanceof Key)) {
+                return false;
+            }
+            final Key other = (Key) o;
+            final Bitmap bitmap = mBitmap.get();
+            // Keys of collected bitmaps are only equal to themselves
+            return bitmap != null && bitmap == other.mBitmap.get()
+                    && mGenerationId == other.mGenerationId
+                    && mMaxColors == other.mMaxColors
+                    && mResizeMaxDimension == other.mResizeMaxDimension
+                    && mFilters.equals(other.mFilters);
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(mBitmapHash, mGenerationId, mMaxColors, mResizeMaxDimension,
+                    mFilters);
+        }
+    }
+}
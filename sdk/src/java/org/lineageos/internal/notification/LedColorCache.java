@@ -0,0 +1,297 @@
+/*
+ * SPDX-FileCopyrightText: 2024 The LineageOS Project
+ * SPDX-License-Identifier: Apache-2.0
+ */
+
+package org.lineageos.internal.notification;
+
+import android.content.BroadcastReceiver;
+import android.content.Context;
+import android.content.Intent;
+import android.content.IntentFilter;
+import android.content.pm.PackageInfo;
+import android.content.pm.PackageManager;
+import android.content.pm.PackageManager.NameNotFoundException;
+import android.content.pm.ResolveInfo;
+import android.graphics.drawable.Drawable;
+import android.net.Uri;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Process;
+import android.os.UserHandle;
+import android.util.ArrayMap;
+import android.util.AtomicFile;
+import android.util.Slog;
+
+import lineageos.util.ColorUtils;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+
+/**
+ * Notification LED colors generated from app icons, persisted across reboots.
+ *
+ * An entry is only valid for the version code and icon resource of the package
+ * it was generated from, and is dropped when the package is updated or
+ * removed. Each line of the backing file is
+ * "package versionCode iconResource color".
+ */
+final class LedColorCache {
+    private static final String TAG = "LedColorCache";
+
+    // Coalesce writes when many colors are generated in a row
+    private static final long WRITE_DELAY_MS = 10 * 1000;
+
+    private static final class Entry {
+        final long mVersionCode;
+        final int mIcon;
+        final int mColor;
+        // whether mVersionCode and mIcon were checked against the installed package
+        boolean mVerified;
+
+        Entry(long versionCode, int icon, int color, boolean verified) {
+            mVersionCode = versionCode;
+            mIcon = icon;
+            mColor = color;
+            mVerified = verified;
+        }
+    }
+
+    private final Context mContext;
+    private final AtomicFile mFile;
+    private final Handler mHandler;
+
+    private final ArrayMap<String, Entry> mEntries = new ArrayMap<>();
+    // packages with a generation queued on mHandler, and the callback to run after it
+    private final ArrayMap<String, Runnable> mPending = new ArrayMap<>();
+
+    private final Runnable mWriteRunnable = this::write;
+
+    private final BroadcastReceiver mPackageReceiver = new BroadcastReceiver() {
+        @Override
+        public void onReceive(Context context, Intent intent) {
+            final Uri data = intent.getData();
+            if (data != null) {
+                remove(data.getSchemeSpecificPart());
+            }
+        }
+    };
+
+    LedColorCache(Context context, File file) {
+        mContext = context;
+        mFile = new AtomicFile(file);
+
+        final HandlerThread thread = new HandlerThread(TAG, Process.THREAD_PRIORITY_BACKGROUND);
+        thread.start();
+        mHandler = new Handler(thread.getLooper());
+
+        mHandler.post(this::read);
+
+        final IntentFilter filter = new IntentFilter();
+        filter.addAction(Intent.ACTION_PACKAGE_REPLACED);
+        filter.addAction(Intent.ACTION_PACKAGE_REMOVED);
+        filter.addDataScheme("package");
+        mContext.registerReceiverAsUser(mPackageReceiver, UserHandle.ALL, filter, null,
+                mHandler);
+    }
+
+    /**
+     * @return the cached color for the package, or null if it has to be generated
+     */
+    Integer get(String packageName) {
+        final Entry entry;
+        synchronized (this) {
+            entry = mEntries.get(packageName);
+            if (entry == null) {
+                return null;
+            }
+            if (entry.mVerified) {
+                return entry.mColor;
+            }
+        }
+
+        // don't hold the lock across the binder call
+        final PackageInfo info = getPackageInfo(packageName);
+
+        synchronized (this) {
+            final Entry current = mEntries.get(packageName);
+            if (current != entry) {
+                // replaced or removed in the meantime
+                return current != null && current.mVerified ? current.mColor : null;
+            }
+            if (info == null || info.getLongVersionCode() != entry.mVersionCode
+                    || info.applicationInfo.icon != entry.mIcon) {
+                mEntries.remove(packageName);
+                scheduleWrite();
+                return null;
+            }
+            entry.mVerified = true;
+            return entry.mColor;
+        }
+    }
+
+    /**
+     * Generate the color for the package from its icon and cache it.
+     *
+     * @return the generated color, or null if the package is not installed
+     */
+    Integer generate(String packageName) {
+        final PackageInfo info = getPackageInfo(packageName);
+        if (info == null) {
+            return null;
+        }
+        final Drawable icon = mContext.getPackageManager().getApplicationIcon(
+                info.applicationInfo);
+        final int color = ColorUtils.generateAlertColorFromDrawable(icon);
+
+        synchronized (this) {
+            mEntries.put(packageName, new Entry(info.getLongVersionCode(),
+                    info.applicationInfo.icon, color, true));
+            scheduleWrite();
+        }
+        return color;
+    }
+
+    /**
+     * Generate the color for the package on the background thread. The color is
+     * only generated once for concurrent requests for the same package.
+     *
+     * @param callback run on the background thread once the color is cached
+     * @param urgent whether to run before queued, non urgent requests
+     */
+    void generateAsync(String packageName, Runnable callback, boolean urgent) {
+        synchronized (this) {
+            if (mPending.containsKey(packageName)) {
+                if (callback == null || mPending.get(packageName) != null) {
+                    return;
+                }
+                // queued without a callback, e.g. by prewarm(); attach ours and
+                // move ahead if needed, whichever request runs first does the work
+                mPending.put(packageName, callback);
+                if (!urgent) {
+                    return;
+                }
+            } else {
+                mPending.put(packageName, callback);
+            }
+        }
+        final Runnable r = () -> {
+            Runnable pendingCallback;
+            try {
+                if (get(packageName) == null) {
+                    generate(packageName);
+                }
+            } finally {
+                synchronized (this) {
+                    pendingCallback = mPending.remove(packageName);
+                }
+            }
+            if (pendingCallback != null && get(packageName) != null) {
+                pendingCallback.run();
+            }
+        };
+        if (urgent) {
+            mHandler.postAtFrontOfQueue(r);
+        } else {
+            mHandler.post(r);
+        }
+    }
+
+    /**
+     * Generate colors in the background for all launchable packages which
+     * aren't cached yet.
+     */
+    void prewarm() {
+        mHandler.post(() -> {
+            final Intent intent = new Intent(Intent.ACTION_MAIN);
+            intent.addCategory(Intent.CATEGORY_LAUNCHER);
+            final List<ResolveInfo> activities =
+                    mContext.getPackageManager().queryIntentActivities(intent, 0);
+
+            // one request per package, so urgent requests don't wait for all of them
+            for (ResolveInfo info : activities) {
+                generateAsync(info.activityInfo.packageName, null, false);
+            }
+        });
+    }
+
+    private synchronized void remove(String packageName) {
+        if (mEntries.remove(packageName) != null) {
+            scheduleWrite();
+        }
+    }
+
+    private PackageInfo getPackageInfo(String packageName) {
+        try {
+            return mContext.getPackageManager().getPackageInfo(packageName, 0);
+        } catch (NameNotFoundException e) {
+            return null;
+        }
+    }
+
+    private void scheduleWrite() {
+        if (!mHandler.hasCallbacks(mWriteRunnable)) {
+            mHandler.postDelayed(mWriteRunnable, WRITE_DELAY_MS);
+        }
+    }
+
+    private synchronized void read() {
+        if (!mFile.exists()) {
+            return;
+        }
+        try (BufferedReader reader = new BufferedReader(new InputStreamReader(
+                mFile.openRead(), StandardCharsets.UTF_8))) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                final String[] fields = line.split(" ");
+                if (fields.length != 4) {
+                    continue;
+                }
+                try {
+                    // entries generated before the file was read take precedence
+                    if (!mEntries.containsKey(fields[0])) {
+                        mEntries.put(fields[0], new Entry(Long.parseLong(fields[1]),
+                                Integer.parseInt(fields[2]), Integer.parseInt(fields[3]),
+                                false));
+                    }
+                } catch (NumberFormatException e) {
+                    Slog.w(TAG, "Ignoring invalid entry for " + fields[0]);
+                }
+            }
+        } catch (IOException e) {
+            Slog.e(TAG, "Failed to read " + mFile.getBaseFile(), e);
+        }
+    }
+
+    private void write() {
+        final StringBuilder sb = new StringBuilder();
+        synchronized (this) {
+            for (int i = 0; i < mEntries.size(); i++) {
+                final Entry entry = mEntries.valueAt(i);
+                sb.append(mEntries.keyAt(i)).append(' ')
+                        .append(entry.mVersionCode).append(' ')
+                        .append(entry.mIcon).append(' ')
+                        .append(entry.mColor).append('\n');
+            }
+        }
+
+        FileOutputStream out = null;
+        try {
+            out = mFile.startWrite();
+            final Writer writer = new OutputStreamWriter(out, StandardCharsets.UTF_8);
+            writer.write(sb.toString());
+            writer.flush();
+            mFile.finishWrite(out);
+        } catch (IOException e) {
+            Slog.e(TAG, "Failed to write " + mFile.getBaseFile(), e);
+            mFile.failWrite(out);
+        }
+    }
+}
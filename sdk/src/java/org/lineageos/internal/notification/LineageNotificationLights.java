@@ -13,11 +13,10 @@ import android.app.KeyguardManager;
 import android.app.Notification;
 import android.content.ContentResolver;
 import android.content.Context;
-import android.content.pm.PackageManager;
-import android.content.pm.PackageManager.NameNotFoundException;
 import android.content.res.Resources;
 import android.database.ContentObserver;
-import android.graphics.drawable.Drawable;
+import android.net.Uri;
+import android.os.Environment;
 import android.os.Handler;
 import android.os.Looper;
 import android.os.UserHandle;
@@ -28,8 +27,8 @@ import android.util.ArrayMap;
 import android.util.Slog;
 
 import lineageos.providers.LineageSettings;
-import lineageos.util.ColorUtils;
 
+import java.io.File;
 import java.util.Map;
 
 public final class LineageNotificationLights {
@@ -56,12 +55,14 @@ public final class LineageNotificationLights {
     private int mDefaultNotificationLedOn;
     private int mDefaultNotificationLedOff;
 
+    private boolean mNotificationPulseCustomEnabled;
     private final ArrayMap<String, LedValues> mNotificationPulseCustomLedValues;
     private final Map<String, String> mPackageNameMappings;
-    private final ArrayMap<String, Integer> mGeneratedPackageLedColors = new ArrayMap<>();
+    private final LedColorCache mLedColorCache;
 
     private int mZenMode;
 
+    private final Handler mHandler;
     private final SettingsObserver mSettingsObserver;
 
     private final Context mContext;
@@ -104,8 +105,18 @@ public final class LineageNotificationLights {
             mPackageNameMappings.put(map[0], map[1]);
         }
 
-        mSettingsObserver = new SettingsObserver(new Handler(Looper.getMainLooper()));
+        // Generated colors are only used with an RGB light
+        mLedColorCache = mMultiColorNotificationLed ? new LedColorCache(mContext,
+                new File(Environment.getDataSystemDirectory(), "notification_led_colors"))
+                : null;
+
+        mHandler = new Handler(Looper.getMainLooper());
+        mSettingsObserver = new SettingsObserver(mHandler);
         mSettingsObserver.observe();
+
+        if (mLedColorCache != null && mAutoGenerateNotificationColor) {
+            mLedColorCache.prewarm();
+        }
     }
 
     // Whether we should show lights if the screen is on.
@@ -121,39 +132,67 @@ public final class LineageNotificationLights {
         return keyguardManager != null && keyguardManager.isKeyguardLocked();
     }
 
+    // Parses "package=color;onMs;offMs|package=color;onMs;offMs|..." without
+    // splitting it into intermediate strings
     private void parseNotificationPulseCustomValuesString(String customLedValuesString) {
+        mNotificationPulseCustomLedValues.clear();
         if (TextUtils.isEmpty(customLedValuesString)) {
             return;
         }
 
-        for (String packageValuesString : customLedValuesString.split("\\|")) {
-            String[] packageValues = packageValuesString.split("=");
-            if (packageValues.length != 2) {
-                Slog.e(TAG, "Error parsing custom led values for unknown package");
-                continue;
-            }
-            String packageName = packageValues[0];
-            String[] values = packageValues[1].split(";");
-            if (values.length != 3) {
-                Slog.e(TAG, "Error parsing custom led values '"
-                        + packageValues[1] + "' for " + packageName);
-                continue;
+        final String s = customLedValuesString;
+        for (int start = 0, length = s.length(); start < length; ) {
+            int end = s.indexOf('|', start);
+            if (end < 0) {
+                end = length;
             }
-            LedValues ledValues;
-            try {
-                // color, onMs, offMs
-                ledValues = new LedValues(Integer.parseInt(values[0]),
-                        Integer.parseInt(values[1]), Integer.parseInt(values[2]));
-            } catch (NumberFormatException e) {
-                Slog.e(TAG, "Error parsing custom led values '"
-                        + packageValues[1] + "' for " + packageName);
-                continue;
-            }
-            mNotificationPulseCustomLedValues.put(packageName, ledValues);
+            parseNotificationPulseCustomValues(s, start, end);
+            start = end + 1;
+        }
+    }
+
+    private void parseNotificationPulseCustomValues(String s, int start, int end) {
+        final int equals = indexOf(s, '=', start, end);
+        if (equals < 0 || equals + 1 == end || indexOf(s, '=', equals + 1, end) >= 0) {
+            Slog.e(TAG, "Error parsing custom led values for unknown package");
+            return;
+        }
+        final String packageName = s.substring(start, equals);
+
+        // color, onMs, offMs; trailing separators are ignored like String.split() does
+        int valueEnd = end;
+        while (valueEnd > equals + 1 && s.charAt(valueEnd - 1) == ';') {
+            valueEnd--;
+        }
+        final int onStart = indexOf(s, ';', equals + 1, valueEnd) + 1;
+        final int offStart = onStart > 0 ? indexOf(s, ';', onStart, valueEnd) + 1 : 0;
+        if (offStart == 0 || indexOf(s, ';', offStart, valueEnd) >= 0) {
+            Slog.e(TAG, "Error parsing custom led values '"
+                    + s.substring(equals + 1, end) + "' for " + packageName);
+            return;
         }
+        LedValues ledValues;
+        try {
+            ledValues = new LedValues(Integer.parseInt(s, equals + 1, onStart - 1, 10),
+                    Integer.parseInt(s, onStart, offStart - 1, 10),
+                    Integer.parseInt(s, offStart, valueEnd, 10));
+        } catch (NumberFormatException e) {
+            Slog.e(TAG, "Error parsing custom led values '"
+                    + s.substring(equals + 1, end) + "' for " + packageName);
+            return;
+        }
+        mNotificationPulseCustomLedValues.put(packageName, ledValues);
+    }
+
+    private static int indexOf(String s, char c, int start, int end) {
+        final int index = s.indexOf(c, start);
+        return index < end ? index : -1;
     }
 
     private LedValues getLedValuesForPackageName(String packageName) {
+        if (!mNotificationPulseCustomEnabled) {
+            return null;
+        }
         return mNotificationPulseCustomLedValues.get(mapPackage(packageName));
     }
 
@@ -165,27 +204,19 @@ public final class LineageNotificationLights {
             return mDefaultNotificationColor;
         }
         final String mapping = mapPackage(packageName);
-        int color = mDefaultNotificationColor;
 
-        if (mGeneratedPackageLedColors.containsKey(mapping)) {
-            return mGeneratedPackageLedColors.get(mapping);
-        }
-
-        PackageManager pm = mContext.getPackageManager();
-        Drawable icon;
-        try {
-            icon = pm.getApplicationIcon(mapping);
-        } catch (NameNotFoundException e) {
-            Slog.e(TAG, e.getMessage(), e);
-            return color;
+        final Integer color = mLedColorCache.get(mapping);
+        if (color == null) {
+            // Don't block the caller on decoding the icon, show the default
+            // color until the generated one is ready.
+            mLedColorCache.generateAsync(mapping, mLedUpdateRunnable, true);
+            return mDefaultNotificationColor;
         }
-
-        color = ColorUtils.generateAlertColorFromDrawable(icon);
-        mGeneratedPackageLedColors.put(mapping, color);
-
         return color;
     }
 
+    private final Runnable mLedUpdateRunnable = () -> mHandler.post(mLedUpdater::update);
+
     private String mapPackage(String pkg) {
         if (!mPackageNameMappings.containsKey(pkg)) {
             return pkg;
@@ -354,123 +385,135 @@ public final class LineageNotificationLights {
     }
 
     class SettingsObserver extends ContentObserver {
+        // Observed settings by URI
+        private final ArrayMap<Uri, String> mSettings = new ArrayMap<>();
+
         SettingsObserver(Handler handler) {
             super(handler);
         }
 
         void observe() {
-            ContentResolver resolver = mContext.getContentResolver();
-
-            resolver.registerContentObserver(Settings.System.getUriFor(
-                    Settings.System.NOTIFICATION_LIGHT_PULSE),
-                    false, this, UserHandle.USER_ALL);
-            resolver.registerContentObserver(LineageSettings.System.getUriFor(
-                    LineageSettings.System.NOTIFICATION_LIGHT_PULSE_DEFAULT_COLOR),
-                    false, this, UserHandle.USER_ALL);
-            resolver.registerContentObserver(LineageSettings.System.getUriFor(
-                    LineageSettings.System.NOTIFICATION_LIGHT_PULSE_DEFAULT_LED_ON),
-                    false, this, UserHandle.USER_ALL);
-            resolver.registerContentObserver(LineageSettings.System.getUriFor(
-                    LineageSettings.System.NOTIFICATION_LIGHT_PULSE_DEFAULT_LED_OFF),
-                    false, this, UserHandle.USER_ALL);
-            resolver.registerContentObserver(LineageSettings.System.getUriFor(
-                    LineageSettings.System.NOTIFICATION_LIGHT_PULSE_CUSTOM_ENABLE),
-                    false, this, UserHandle.USER_ALL);
-            resolver.registerContentObserver(LineageSettings.System.getUriFor(
-                    LineageSettings.System.NOTIFICATION_LIGHT_PULSE_CUSTOM_VALUES),
-                    false, this, UserHandle.USER_ALL);
-            resolver.registerContentObserver(LineageSettings.System.getUriFor(
-                    LineageSettings.System.NOTIFICATION_LIGHT_SCREEN_ON),
-                    false, this, UserHandle.USER_ALL);
-            resolver.registerContentObserver(LineageSettings.System.getUriFor(
-                    LineageSettings.System.NOTIFICATION_LIGHT_COLOR_AUTO), false,
-                    this, UserHandle.USER_ALL);
+            observe(Settings.System.getUriFor(Settings.System.NOTIFICATION_LIGHT_PULSE),
+                    Settings.System.NOTIFICATION_LIGHT_PULSE);
+            observeLineage(LineageSettings.System.NOTIFICATION_LIGHT_PULSE_DEFAULT_COLOR);
+            observeLineage(LineageSettings.System.NOTIFICATION_LIGHT_PULSE_DEFAULT_LED_ON);
+            observeLineage(LineageSettings.System.NOTIFICATION_LIGHT_PULSE_DEFAULT_LED_OFF);
+            observeLineage(LineageSettings.System.NOTIFICATION_LIGHT_PULSE_CUSTOM_ENABLE);
+            observeLineage(LineageSettings.System.NOTIFICATION_LIGHT_PULSE_CUSTOM_VALUES);
+            observeLineage(LineageSettings.System.NOTIFICATION_LIGHT_SCREEN_ON);
+            observeLineage(LineageSettings.System.NOTIFICATION_LIGHT_COLOR_AUTO);
 
             if (mCanAdjustBrightness) {
-                resolver.registerContentObserver(LineageSettings.System.getUriFor(
-                        LineageSettings.System.NOTIFICATION_LIGHT_BRIGHTNESS_LEVEL),
-                        false, this, UserHandle.USER_ALL);
-                resolver.registerContentObserver(LineageSettings.System.getUriFor(
-                        LineageSettings.System.NOTIFICATION_LIGHT_BRIGHTNESS_LEVEL_ZEN),
-                        false, this, UserHandle.USER_ALL);
+                observeLineage(LineageSettings.System.NOTIFICATION_LIGHT_BRIGHTNESS_LEVEL);
+                observeLineage(LineageSettings.System.NOTIFICATION_LIGHT_BRIGHTNESS_LEVEL_ZEN);
             }
 
-            resolver.registerContentObserver(LineageSettings.System.getUriFor(
-                    LineageSettings.System.ZEN_ALLOW_LIGHTS), false, this,
-                    UserHandle.USER_ALL);
+            observeLineage(LineageSettings.System.ZEN_ALLOW_LIGHTS);
 
             update();
         }
 
+        private void observeLineage(String setting) {
+            observe(LineageSettings.System.getUriFor(setting), setting);
+        }
+
+        private void observe(Uri uri, String setting) {
+            mSettings.put(uri, setting);
+            mContext.getContentResolver().registerContentObserver(uri,
+                    false, this, UserHandle.USER_ALL);
+        }
+
         @Override
-        public void onChange(boolean selfChange) {
-            update();
+        public void onChange(boolean selfChange, Uri uri) {
+            // Only re-read the setting which changed, each read is a binder call
+            final String setting = uri != null ? mSettings.get(uri) : null;
+            if (setting == null) {
+                update();
+                return;
+            }
+            update(setting);
+            mLedUpdater.update();
         }
 
         private void update() {
-            ContentResolver resolver = mContext.getContentResolver();
-            Resources res = mContext.getResources();
-
-            // Whether the notification led is enabled
-            mNotificationLedEnabled = Settings.System.getIntForUser(resolver,
-                    Settings.System.NOTIFICATION_LIGHT_PULSE,
-                    0, UserHandle.USER_CURRENT) != 0;
-
-            // Automatically pick a color for LED if not set
-            mAutoGenerateNotificationColor = LineageSettings.System.getIntForUser(resolver,
-                    LineageSettings.System.NOTIFICATION_LIGHT_COLOR_AUTO,
-                    1, UserHandle.USER_CURRENT) != 0;
-
-            // LED default color
-            mDefaultNotificationColor = LineageSettings.System.getIntForUser(resolver,
-                    LineageSettings.System.NOTIFICATION_LIGHT_PULSE_DEFAULT_COLOR,
-                    mDefaultNotificationColor, UserHandle.USER_CURRENT);
-
-            // LED default on MS
-            mDefaultNotificationLedOn = LineageSettings.System.getIntForUser(resolver,
-                    LineageSettings.System.NOTIFICATION_LIGHT_PULSE_DEFAULT_LED_ON,
-                    mDefaultNotificationLedOn, UserHandle.USER_CURRENT);
-
-            // LED default off MS
-            mDefaultNotificationLedOff = LineageSettings.System.getIntForUser(resolver,
-                    LineageSettings.System.NOTIFICATION_LIGHT_PULSE_DEFAULT_LED_OFF,
-                    mDefaultNotificationLedOff, UserHandle.USER_CURRENT);
-
-            // LED generated notification colors
-            mGeneratedPackageLedColors.clear();
-
-            // LED custom notification colors
-            mNotificationPulseCustomLedValues.clear();
-            if (LineageSettings.System.getIntForUser(resolver,
-                    LineageSettings.System.NOTIFICATION_LIGHT_PULSE_CUSTOM_ENABLE, 0,
-                    UserHandle.USER_CURRENT) != 0) {
-                parseNotificationPulseCustomValuesString(LineageSettings.System.getStringForUser(
-                        resolver, LineageSettings.System.NOTIFICATION_LIGHT_PULSE_CUSTOM_VALUES,
-                        UserHandle.USER_CURRENT));
+            for (int i = 0; i < mSettings.size(); i++) {
+                update(mSettings.valueAt(i));
             }
+            mLedUpdater.update();
+        }
 
-            // Notification lights with screen on
-            mScreenOnEnabled = (LineageSettings.System.getIntForUser(resolver,
-                    LineageSettings.System.NOTIFICATION_LIGHT_SCREEN_ON, 0,
-                    UserHandle.USER_CURRENT) != 0);
+        private void update(String setting) {
+            ContentResolver resolver = mContext.getContentResolver();
 
-            // Adjustable notification LED brightness.
-            if (mCanAdjustBrightness) {
-                // Normal brightness.
-                mNotificationLedBrightnessLevel = LineageSettings.System.getIntForUser(resolver,
-                        LineageSettings.System.NOTIFICATION_LIGHT_BRIGHTNESS_LEVEL,
-                        LedValues.LIGHT_BRIGHTNESS_MAXIMUM, UserHandle.USER_CURRENT);
-                // Brightness in Do Not Disturb mode.
-                mNotificationLedBrightnessLevelZen = LineageSettings.System.getIntForUser(
-                        resolver, LineageSettings.System.NOTIFICATION_LIGHT_BRIGHTNESS_LEVEL_ZEN,
-                        LedValues.LIGHT_BRIGHTNESS_MAXIMUM, UserHandle.USER_CURRENT);
+            switch (setting) {
+                case Settings.System.NOTIFICATION_LIGHT_PULSE:
+                    // Whether the notification led is enabled
+                    mNotificationLedEnabled = Settings.System.getIntForUser(resolver,
+                            Settings.System.NOTIFICATION_LIGHT_PULSE,
+                            0, UserHandle.USER_CURRENT) != 0;
+                    break;
+                case LineageSettings.System.NOTIFICATION_LIGHT_COLOR_AUTO:
+                    // Automatically pick a color for LED if not set
+                    mAutoGenerateNotificationColor = LineageSettings.System.getIntForUser(
+                            resolver, LineageSettings.System.NOTIFICATION_LIGHT_COLOR_AUTO,
+                            1, UserHandle.USER_CURRENT) != 0;
+                    break;
+                case LineageSettings.System.NOTIFICATION_LIGHT_PULSE_DEFAULT_COLOR:
+                    // LED default color
+                    mDefaultNotificationColor = LineageSettings.System.getIntForUser(resolver,
+                            LineageSettings.System.NOTIFICATION_LIGHT_PULSE_DEFAULT_COLOR,
+                            mDefaultNotificationColor, UserHandle.USER_CURRENT);
+                    break;
+                case LineageSettings.System.NOTIFICATION_LIGHT_PULSE_DEFAULT_LED_ON:
+                    // LED default on MS
+                    mDefaultNotificationLedOn = LineageSettings.System.getIntForUser(resolver,
+                            LineageSettings.System.NOTIFICATION_LIGHT_PULSE_DEFAULT_LED_ON,
+                            mDefaultNotificationLedOn, UserHandle.USER_CURRENT);
+                    break;
+                case LineageSettings.System.NOTIFICATION_LIGHT_PULSE_DEFAULT_LED_OFF:
+                    // LED default off MS
+                    mDefaultNotificationLedOff = LineageSettings.System.getIntForUser(resolver,
+                            LineageSettings.System.NOTIFICATION_LIGHT_PULSE_DEFAULT_LED_OFF,
+                            mDefaultNotificationLedOff, UserHandle.USER_CURRENT);
+                    break;
+                case LineageSettings.System.NOTIFICATION_LIGHT_PULSE_CUSTOM_ENABLE:
+                    // Whether LED custom notification colors are used
+                    mNotificationPulseCustomEnabled = LineageSettings.System.getIntForUser(
+                            resolver, LineageSettings.System.NOTIFICATION_LIGHT_PULSE_CUSTOM_ENABLE,
+                            0, UserHandle.USER_CURRENT) != 0;
+                    break;
+                case LineageSettings.System.NOTIFICATION_LIGHT_PULSE_CUSTOM_VALUES:
+                    // LED custom notification colors
+                    parseNotificationPulseCustomValuesString(
+                            LineageSettings.System.getStringForUser(resolver,
+                            LineageSettings.System.NOTIFICATION_LIGHT_PULSE_CUSTOM_VALUES,
+                            UserHandle.USER_CURRENT));
+                    break;
+                case LineageSettings.System.NOTIFICATION_LIGHT_SCREEN_ON:
+                    // Notification lights with screen on
+                    mScreenOnEnabled = (LineageSettings.System.getIntForUser(resolver,
+                            LineageSettings.System.NOTIFICATION_LIGHT_SCREEN_ON, 0,
+                            UserHandle.USER_CURRENT) != 0);
+                    break;
+                case LineageSettings.System.NOTIFICATION_LIGHT_BRIGHTNESS_LEVEL:
+                    // Adjustable notification LED brightness, normal brightness.
+                    mNotificationLedBrightnessLevel = LineageSettings.System.getIntForUser(
+                            resolver, LineageSettings.System.NOTIFICATION_LIGHT_BRIGHTNESS_LEVEL,
+                            LedValues.LIGHT_BRIGHTNESS_MAXIMUM, UserHandle.USER_CURRENT);
+                    break;
+                case LineageSettings.System.NOTIFICATION_LIGHT_BRIGHTNESS_LEVEL_ZEN:
+                    // Brightness in Do Not Disturb mode.
+                    mNotificationLedBrightnessLevelZen = LineageSettings.System.getIntForUser(
+                            resolver,
+                            LineageSettings.System.NOTIFICATION_LIGHT_BRIGHTNESS_LEVEL_ZEN,
+                            LedValues.LIGHT_BRIGHTNESS_MAXIMUM, UserHandle.USER_CURRENT);
+                    break;
+                case LineageSettings.System.ZEN_ALLOW_LIGHTS:
+                    mZenAllowLights = LineageSettings.System.getIntForUser(resolver,
+                            LineageSettings.System.ZEN_ALLOW_LIGHTS,
+                            1, UserHandle.USER_CURRENT) != 0;
+                    break;
             }
-
-            mZenAllowLights = LineageSettings.System.getIntForUser(resolver,
-                        LineageSettings.System.ZEN_ALLOW_LIGHTS,
-                        1, UserHandle.USER_CURRENT) != 0;
-
-            mLedUpdater.update();
         }
     }
 }